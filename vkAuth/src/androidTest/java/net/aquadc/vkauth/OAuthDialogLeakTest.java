@@ -0,0 +1,134 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+
+import net.aquadc.vkauth.emulator.OAuthEmulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shows OAuth dialog with a real WebView against {@link OAuthEmulator} and dismisses it, over and over,
+ * then checks that neither dialog fragments nor their holders outlive dismissal.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class OAuthDialogLeakTest {
+
+    private static final int Logins = 10;
+    private static final long PageTimeout = 10_000;
+
+    @Rule public final ActivityTestRule<HostActivity> rule = new ActivityTestRule<>(HostActivity.class);
+
+    private OAuthEmulator emulator;
+    private VkApp app;
+
+    @Before public void setUp() throws IOException {
+        emulator = new OAuthEmulator();
+        app = VkApp.getInstance(1300);
+        app.setOAuthHost(emulator.host());
+    }
+
+    @After public void tearDown() {
+        emulator.close();
+    }
+
+    @Test public void dismissedDialogsAreCollected() throws Throwable {
+        final HostActivity activity = rule.getActivity();
+        List<WeakReference<Object>> refs = new ArrayList<>();
+        for (int i = 0; i < Logins; i++) {
+            final VkOAuthDialogHolder.NativeFragment[] dialog = new VkOAuthDialogHolder.NativeFragment[1];
+            rule.runOnUiThread(new Runnable() {
+                @Override public void run() {
+                    app.login(activity, EnumSet.of(VkScope.FRIENDS), AuthenticationWay.WebView, activity.getFragmentManager());
+                    activity.getFragmentManager().executePendingTransactions();
+                    dialog[0] = activity.dialog;
+                    activity.dialog = null;
+                }
+            });
+            assertNotNull("no OAuth dialog", dialog[0]);
+            awaitPage(dialog[0]);
+            refs.add(new WeakReference<Object>(dialog[0]));
+            refs.add(new WeakReference<Object>(dialog[0].getHolder()));
+
+            rule.runOnUiThread(new Runnable() {
+                @Override public void run() {
+                    dialog[0].dismiss();
+                    activity.getFragmentManager().executePendingTransactions();
+                }
+            });
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+            dialog[0] = null; // this frame must not keep it reachable
+        }
+        assertEquals(Logins, activity.errors); // each dismissal is a cancelled login
+
+        for (int attempt = 0; attempt < 20 && reachable(refs) > 0; attempt++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            Thread.sleep(100);
+        }
+        assertEquals(0, reachable(refs));
+    }
+
+    /**
+     * Waits for the login page from emulator: WebView becomes visible when it's loaded.
+     */
+    private void awaitPage(final VkOAuthDialogHolder.NativeFragment dialog) throws Throwable {
+        final boolean[] shown = new boolean[1];
+        long deadline = System.currentTimeMillis() + PageTimeout;
+        while (!shown[0] && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            rule.runOnUiThread(new Runnable() {
+                @Override public void run() {
+                    shown[0] = dialog.getHolder().webView.getVisibility() == View.VISIBLE;
+                }
+            });
+        }
+        assertTrue("login page was not loaded in " + PageTimeout + " ms", shown[0]);
+    }
+
+    private static int reachable(List<WeakReference<Object>> refs) {
+        int reachable = 0;
+        for (WeakReference<Object> ref : refs) {
+            if (ref.get() != null) reachable++;
+        }
+        return reachable;
+    }
+
+    public static final class HostActivity extends Activity implements VkApp.VkAuthCallbackProvider {
+        /*pkg*/ int tokens, errors; // main thread only
+        /*pkg*/ VkOAuthDialogHolder.NativeFragment dialog;
+        @Override public void onAttachFragment(Fragment fragment) {
+            super.onAttachFragment(fragment);
+            if (fragment instanceof VkOAuthDialogHolder.NativeFragment) dialog = (VkOAuthDialogHolder.NativeFragment) fragment;
+        }
+        @Override public VkApp.VkAuthCallback getVkAuthCallback() {
+            return new VkApp.VkAuthCallback() {
+                @Override public void onResult(VkAccessToken token) {
+                    tokens++;
+                }
+                @Override public void onError() {
+                    errors++;
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+/**
+ * {@link AuthLauncher} for AndroidX Activities and Fragments.
+ */
+/*pkg*/ final class AndroidXLauncher extends AuthLauncher {
+
+    private final Activity activity;
+    @Nullable private final androidx.fragment.app.Fragment fragment;
+    private final androidx.fragment.app.FragmentManager fragmentManager;
+
+    /*pkg*/ AndroidXLauncher(androidx.appcompat.app.AppCompatActivity activity, androidx.fragment.app.FragmentManager fragmentManager) {
+        this.activity = activity;
+        this.fragment = null;
+        this.fragmentManager = fragmentManager;
+    }
+
+    /*pkg*/ AndroidXLauncher(androidx.fragment.app.Fragment fragment, androidx.fragment.app.FragmentManager fragmentManager) {
+        this.activity = fragment.getActivity();
+        this.fragment = fragment;
+        this.fragmentManager = fragmentManager;
+    }
+
+    @Override /*pkg*/ Activity activity() {
+        return activity;
+    }
+
+    @Override /*pkg*/ void startActivityForResult(Intent intent, int requestCode) {
+        if (fragment == null) activity.startActivityForResult(intent, requestCode);
+        else fragment.startActivityForResult(intent, requestCode);
+    }
+
+    @Override /*pkg*/ void showOAuthDialog(Bundle arguments) {
+        androidx.fragment.app.DialogFragment dialog = new VkOAuthDialogHolder.XFragment();
+        dialog.setArguments(arguments);
+        if (fragment != null) dialog.setTargetFragment(fragment, 0);
+        dialog.show(fragmentManager, null);
+    }
+
+}
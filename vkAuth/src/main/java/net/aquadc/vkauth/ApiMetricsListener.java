@@ -0,0 +1,19 @@
+package net.aquadc.vkauth;
+
+/**
+ * Receives timings of {@link VkApiClient} calls.
+ * Called on client's background thread, must be fast.
+ * @see VkApiClient#setMetricsListener(ApiMetricsListener)
+ */
+public interface ApiMetricsListener {
+
+    /**
+     * Called when a call leaves the queue to be sent.
+     * @param method      API method name
+     * @param priority    call priority
+     * @param waitMillis  how long the call was queued, including batch window and rate limiting
+     * @param queueDepth  number of calls of the same priority left in the queue
+     */
+    void onCallSent(String method, VkApiClient.Priority priority, long waitMillis, int queueDepth);
+
+}
@@ -0,0 +1,141 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queues of {@link VkApiClient} calls, keyed by access token they were issued with,
+ * with a lane per {@link VkApiClient.Priority} and a rate limiter per token.
+ * Knows nothing about threads and network, time is passed in. Not thread-safe.
+ */
+/*pkg*/ final class ApiScheduler {
+
+    /*pkg*/ static final int LaneCapacity = 1000;
+    private static final VkApiClient.Priority[] Priorities = VkApiClient.Priority.values();
+
+    private final HashMap<String, TokenQueue> byToken = new HashMap<>(2);
+    private int perSecond;
+    private int burst;
+
+    /*pkg*/ ApiScheduler(int perSecond, int burst) {
+        setRateLimit(perSecond, burst);
+    }
+
+    /**
+     * Applies to tokens seen after this call.
+     */
+    /*pkg*/ void setRateLimit(int perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * @return {@code false} if the lane is full
+     */
+    /*pkg*/ boolean enqueue(String accessToken, VkApiClient.Call call, long nowMillis) {
+        TokenQueue queue = byToken.get(accessToken);
+        if (queue == null) byToken.put(accessToken, queue = new TokenQueue(new TokenBucket(perSecond, burst, nowMillis)));
+        ArrayDeque<VkApiClient.Call> lane = queue.lanes[call.priority.ordinal()];
+        if (lane.size() >= LaneCapacity) return false;
+        lane.add(call);
+        return true;
+    }
+
+    /**
+     * Puts calls back to the head of their lanes, keeping their order,
+     * and holds all calls of this token for {@code backOffMillis}.
+     */
+    /*pkg*/ void requeue(String accessToken, List<VkApiClient.Call> calls, long nowMillis, long backOffMillis) {
+        TokenQueue queue = byToken.get(accessToken);
+        if (queue == null) byToken.put(accessToken, queue = new TokenQueue(new TokenBucket(perSecond, burst, nowMillis)));
+        queue.bucket.backOff(nowMillis, backOffMillis);
+        for (int i = calls.size() - 1; i >= 0; i--) {
+            VkApiClient.Call call = calls.get(i);
+            queue.lanes[call.priority.ordinal()].addFirst(call);
+        }
+    }
+
+    /**
+     * Forgets calls issued with tokens other than {@code accessToken}.
+     * @return forgotten calls
+     */
+    /*pkg*/ List<VkApiClient.Call> retainOnly(@Nullable String accessToken) {
+        List<VkApiClient.Call> removed = null;
+        for (Iterator<Map.Entry<String, TokenQueue>> itr = byToken.entrySet().iterator(); itr.hasNext(); ) {
+            Map.Entry<String, TokenQueue> entry = itr.next();
+            if (entry.getKey().equals(accessToken)) continue;
+            itr.remove();
+            for (ArrayDeque<VkApiClient.Call> lane : entry.getValue().lanes) {
+                if (removed == null) removed = new ArrayList<>(lane.size());
+                removed.addAll(lane);
+            }
+        }
+        return removed == null ? Collections.<VkApiClient.Call>emptyList() : removed;
+    }
+
+    /**
+     * Takes a permit for sending a request with {@code accessToken}.
+     * @return 0 if the request may be sent now, or how many milliseconds later it may be sent
+     */
+    /*pkg*/ long tryAcquire(String accessToken, long nowMillis) {
+        TokenQueue queue = byToken.get(accessToken);
+        return queue == null ? 0 : queue.bucket.tryAcquire(nowMillis);
+    }
+
+    /**
+     * Moves up to {@code max} calls issued with {@code accessToken} to {@code into}, higher priorities first.
+     * Cancelled calls are dropped.
+     */
+    /*pkg*/ void poll(String accessToken, int max, List<VkApiClient.Call> into) {
+        TokenQueue queue = byToken.get(accessToken);
+        if (queue == null) return;
+        for (ArrayDeque<VkApiClient.Call> lane : queue.lanes) {
+            VkApiClient.Call call;
+            while (into.size() < max && (call = lane.poll()) != null) {
+                if (!call.isDone()) into.add(call);
+            }
+        }
+    }
+
+    /**
+     * @return number of calls issued with {@code accessToken}, including cancelled ones
+     */
+    /*pkg*/ int size(String accessToken) {
+        TokenQueue queue = byToken.get(accessToken);
+        if (queue == null) return 0;
+        int size = 0;
+        for (ArrayDeque<VkApiClient.Call> lane : queue.lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of queued calls of given priority, for all tokens
+     */
+    /*pkg*/ int depth(VkApiClient.Priority priority) {
+        int depth = 0;
+        for (TokenQueue queue : byToken.values()) {
+            depth += queue.lanes[priority.ordinal()].size();
+        }
+        return depth;
+    }
+
+    private static final class TokenQueue {
+        /*pkg*/ final TokenBucket bucket;
+        @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+        /*pkg*/ final ArrayDeque<VkApiClient.Call>[] lanes = new ArrayDeque[Priorities.length];
+        /*pkg*/ TokenQueue(TokenBucket bucket) {
+            this.bucket = bucket;
+            for (int i = 0; i < lanes.length; i++) lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Starts auth UI from an Activity or a Fragment of some UI stack: framework, Support, or AndroidX.
+ * Support and AndroidX are optional dependencies, so classes which may be loaded without them,
+ * like {@link AuthenticationWay}, must not mention their types:
+ * ART fails to verify such classes and won't compile them ahead of time.
+ * Each stack has its own launcher which is loaded only when that stack is used.
+ */
+/*pkg*/ abstract class AuthLauncher {
+
+    /**
+     * @return Activity the auth is performed from
+     */
+    /*pkg*/ abstract Activity activity();
+
+    /**
+     * Starts an Activity whose result must be delivered to caller's {@code onActivityResult}.
+     */
+    /*pkg*/ abstract void startActivityForResult(Intent intent, int requestCode);
+
+    /**
+     * Shows {@link AuthenticationWay#WebView} dialog, its result is delivered to caller's {@code onActivityResult}.
+     */
+    /*pkg*/ abstract void showOAuthDialog(Bundle arguments);
+
+}
@@ -0,0 +1,112 @@
+package net.aquadc.vkauth;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Measures authentication stages of a {@link VkApp} and wraps them into systrace sections.
+ * Timing costs nothing when there's no listener: no clock reads, no allocations.
+ * Main thread only, except for {@link #listener}.
+ */
+/*pkg*/ final class AuthMetrics {
+
+    /*pkg*/ volatile AuthMetricsListener listener;
+
+    private AuthenticationWay flowWay;
+    private long flowStart;
+    private int flowCookie;
+
+    /**
+     * @return current time, if somebody is listening, 0 otherwise
+     */
+    /*pkg*/ long start() {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    /*pkg*/ void flowStarted(AuthenticationWay way, Context context) {
+        flowCookie++;
+        asyncTraceBegin("VkAuth", flowCookie);
+        if (listener != null) {
+            flowWay = way.resolve(context);
+            flowStart = System.nanoTime();
+        }
+    }
+
+    /*pkg*/ void preconnectUsed(long startNanos, long durationNanos) {
+        AuthMetricsListener l = listener;
+        if (l != null && flowWay != null) {
+            l.onStage(flowWay, AuthMetricsListener.Stage.PRECONNECT, startNanos, durationNanos);
+        }
+    }
+
+    /**
+     * @return way of current flow, or {@code fallback} if it is unknown
+     */
+    /*pkg*/ AuthenticationWay flowWay(AuthenticationWay fallback) {
+        return flowWay == null ? fallback : flowWay;
+    }
+
+    /**
+     * @return start time of current flow, or 0 if it is unknown
+     */
+    /*pkg*/ long flowStart() {
+        return flowStart;
+    }
+
+    /*pkg*/ void stage(AuthenticationWay way, AuthMetricsListener.Stage stage, long start) {
+        AuthMetricsListener l = listener;
+        if (l != null && start != 0) {
+            l.onStage(way, stage, start, System.nanoTime() - start);
+        }
+    }
+
+    /*pkg*/ void finished(AuthenticationWay way, AuthMetricsListener.Outcome outcome) {
+        asyncTraceEnd("VkAuth", flowCookie);
+        long start = flowStart;
+        flowStart = 0;
+        flowWay = null;
+        AuthMetricsListener l = listener;
+        if (l != null && start != 0) {
+            l.onFinished(way, outcome, start, System.nanoTime() - start);
+        }
+    }
+
+    // tracing is almost free when not enabled, see Trace.isTagEnabled
+
+    /*pkg*/ static void traceBegin(String sectionName) {
+        if (Build.VERSION.SDK_INT >= 18) {
+            Trace.beginSection(sectionName);
+        }
+    }
+
+    /*pkg*/ static void traceEnd() {
+        if (Build.VERSION.SDK_INT >= 18) {
+            Trace.endSection();
+        }
+    }
+
+    /*pkg*/ static void asyncTraceBegin(String sectionName, int cookie) {
+        if (Build.VERSION.SDK_INT >= 29) {
+            Api29.beginAsyncSection(sectionName, cookie);
+        }
+    }
+
+    /*pkg*/ static void asyncTraceEnd(String sectionName, int cookie) {
+        if (Build.VERSION.SDK_INT >= 29) {
+            Api29.endAsyncSection(sectionName, cookie);
+        }
+    }
+
+    @TargetApi(29)
+    private static final class Api29 {
+        /*pkg*/ static void beginAsyncSection(String sectionName, int cookie) {
+            Trace.beginAsyncSection(sectionName, cookie);
+        }
+        /*pkg*/ static void endAsyncSection(String sectionName, int cookie) {
+            Trace.endAsyncSection(sectionName, cookie);
+        }
+    }
+
+}
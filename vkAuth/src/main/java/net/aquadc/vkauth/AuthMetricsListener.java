@@ -0,0 +1,59 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives timings of authentication flow stages.
+ * All timestamps are {@link System#nanoTime()}-based, all durations are in nanoseconds.
+ * Called on main thread.
+ * @see VkApp#setAuthMetricsListener(AuthMetricsListener)
+ */
+public interface AuthMetricsListener {
+
+    enum Stage {
+        /** Creation of OAuth dialog with its WebView. */
+        DIALOG_CREATION,
+        /** Building OAuth URL and asking WebView to load it. */
+        PAGE_LOAD_REQUEST,
+        /** From {@code onPageStarted} to {@code onPageFinished}, reported for every page of OAuth dialog. */
+        PAGE_LOAD,
+        /** Handling of redirect with auth result in WebView. */
+        REDIRECT,
+        /** From launching official VK app to receiving its result. */
+        APP_ROUND_TRIP,
+        /** From launching Custom Tab to receiving the redirect. */
+        BROWSER_ROUND_TRIP,
+        /** Parsing and merging of the received token. */
+        TOKEN_PARSING,
+        /** Exchange of authorization code for a token, in code flow. */
+        TOKEN_EXCHANGE,
+        /**
+         * HEAD request made by {@link VkApp#preconnect(android.content.Context)}.
+         * Reported right after login starts, only if preconnect was fresh and made for the way this login uses.
+         */
+        PRECONNECT,
+    }
+
+    enum Outcome {
+        SUCCESS, ERROR, CANCELLED
+    }
+
+    /**
+     * Called when a stage of authentication completes.
+     * @param way    the way of authentication actually used, never {@link AuthenticationWay#Auto}
+     * @param stage  completed stage
+     * @param startNanos    stage start time
+     * @param durationNanos stage duration
+     */
+    void onStage(@NonNull AuthenticationWay way, @NonNull Stage stage, long startNanos, long durationNanos);
+
+    /**
+     * Called when authentication flow finishes.
+     * @param way     the way of authentication actually used, never {@link AuthenticationWay#Auto}
+     * @param outcome how it has finished
+     * @param startNanos    time of login call, or of the first known stage, if the flow has survived process death
+     * @param durationNanos duration of the whole flow
+     */
+    void onFinished(@NonNull AuthenticationWay way, @NonNull Outcome outcome, long startNanos, long durationNanos);
+
+}
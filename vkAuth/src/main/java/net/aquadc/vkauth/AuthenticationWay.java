@@ -1,11 +1,8 @@
 package net.aquadc.vkauth;
 
-import android.app.Activity;
-import android.app.Fragment;
 import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
-import androidx.appcompat.app.AppCompatActivity;
-import androidx.fragment.app.FragmentManager;
 
 import static net.aquadc.vkauth.VkApp.*;
 
@@ -18,105 +15,57 @@ public enum AuthenticationWay {
             return VkApp.isInstalled(context);
         }
 
-        @Override void perform(Activity caller, Bundle extras, android.app.FragmentManager fragmentManager) {
-            if (!isAvailable(caller)) throw new IllegalStateException("Official VK app is unavailable.");
-            caller.startActivityForResult(createAuthIntent(extras), RcVkAuth);
-        }
-        @Override void perform(android.support.v7.app.AppCompatActivity caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager) {
-            if (!isAvailable(caller)) throw new IllegalStateException("Official VK app is unavailable.");
-            caller.startActivityForResult(createAuthIntent(extras), RcVkAuth);
-        }
-        @Override void perform(AppCompatActivity caller, Bundle extras, FragmentManager fragmentManager) {
-            if (!isAvailable(caller)) throw new IllegalStateException("Official VK app is unavailable.");
-            caller.startActivityForResult(createAuthIntent(extras), RcVkAuth);
-        }
-        @Override void perform(android.app.Fragment caller, Bundle extras, android.app.FragmentManager fragmentManager) {
-            if (!isAvailable(caller.getActivity())) throw new IllegalStateException("Official VK app is unavailable.");
-            caller.startActivityForResult(createAuthIntent(extras), RcVkAuth);
-        }
-        @Override void perform(android.support.v4.app.Fragment caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager) {
-            if (!isAvailable(caller.getActivity())) throw new IllegalStateException("Official VK app is unavailable.");
-            caller.startActivityForResult(createAuthIntent(extras), RcVkAuth);
-        }
-        @Override void perform(androidx.fragment.app.Fragment caller, Bundle extras, FragmentManager fragmentManager) {
-            if (!isAvailable(caller.getActivity())) throw new IllegalStateException("Official VK app is unavailable.");
-            caller.startActivityForResult(createAuthIntent(extras), RcVkAuth);
+        @Override void perform(AuthLauncher launcher, Bundle extras) {
+            if (!isAvailable(launcher.activity())) throw new IllegalStateException("Official VK app is unavailable.");
+            launcher.startActivityForResult(createAuthIntent(extras), RcVkAuth);
         }
     },
     WebView {
-        @Override void perform(Activity caller, Bundle extras, android.app.FragmentManager fragmentManager) {
-            android.app.DialogFragment dialog = new VkOAuthDialogHolder.NativeFragment();
-            dialog.setArguments(augumented(extras));
-            dialog.show(fragmentManager, null);
-        }
-        @Override void perform(android.support.v7.app.AppCompatActivity caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager) {
-            android.support.v4.app.DialogFragment dialog = new VkOAuthDialogHolder.CompatFragment();
-            dialog.setArguments(augumented(extras));
-            dialog.show(fragmentManager, null);
-        }
-        @Override void perform(AppCompatActivity caller, Bundle extras, FragmentManager fragmentManager) {
-            androidx.fragment.app.DialogFragment dialog = new VkOAuthDialogHolder.XFragment();
-            dialog.setArguments(augumented(extras));
-            dialog.show(fragmentManager, null);
-        }
-        @Override void perform(android.app.Fragment caller, Bundle extras, android.app.FragmentManager fragmentManager) {
-            android.app.DialogFragment dialog = new VkOAuthDialogHolder.NativeFragment();
-            dialog.setArguments(augumented(extras));
-            dialog.setTargetFragment(caller, 0);
-            dialog.show(fragmentManager, null);
+        @Override void perform(AuthLauncher launcher, Bundle extras) {
+            extras.putInt("request code", RcVkAuth);
+            launcher.showOAuthDialog(extras);
         }
-        @Override void perform(android.support.v4.app.Fragment caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager) {
-            android.support.v4.app.DialogFragment dialog = new VkOAuthDialogHolder.CompatFragment();
-            dialog.setArguments(augumented(extras));
-            dialog.setTargetFragment(caller, 0);
-            dialog.show(fragmentManager, null);
+    },
+    /**
+     * OAuth page in a Custom Tab. Shares cookies with the browser, so user is often already logged in,
+     * and doesn't pay for WebView initialization.
+     * Requires androidx.browser and {@link VkCustomTabsRedirectActivity} declared in manifest, see README.
+     */
+    CustomTabs {
+        @Override public boolean isAvailable(Context context) {
+            return VkCustomTabs.isAvailable(context);
         }
-        @Override void perform(androidx.fragment.app.Fragment caller, Bundle extras, FragmentManager fragmentManager) {
-            androidx.fragment.app.DialogFragment dialog = new VkOAuthDialogHolder.XFragment();
-            dialog.setArguments(augumented(extras));
-            dialog.setTargetFragment(caller, 0);
-            dialog.show(fragmentManager, null);
+
+        @Override void perform(AuthLauncher launcher, Bundle extras) {
+            launcher.startActivityForResult(intent(launcher.activity(), extras), RcVkAuth);
         }
 
-        private Bundle augumented(Bundle extras) {
-            extras.putInt("request code", RcVkAuth);
-            return extras;
+        private Intent intent(Context context, Bundle extras) {
+            if (!isAvailable(context)) throw new IllegalStateException("Custom Tabs are unavailable.");
+            return new Intent(context, VkCustomTabsActivity.class).putExtras(extras);
         }
     },
+    /**
+     * Official VK app, if installed, then Custom Tabs, if available, then WebView.
+     */
     Auto {
-        @Override void perform(Activity caller, Bundle extras, android.app.FragmentManager fragmentManager) {
-            if (OfficialVkApp.isAvailable(caller)) OfficialVkApp.perform(caller, extras, fragmentManager);
-            else WebView.perform(caller, extras, fragmentManager);
-        }
-        @Override void perform(android.support.v7.app.AppCompatActivity caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager) {
-            if (OfficialVkApp.isAvailable(caller)) OfficialVkApp.perform(caller, extras, fragmentManager);
-            else WebView.perform(caller, extras, fragmentManager);
-        }
-        @Override void perform(AppCompatActivity caller, Bundle extras, FragmentManager fragmentManager) {
-            if (OfficialVkApp.isAvailable(caller)) OfficialVkApp.perform(caller, extras, fragmentManager);
-            else WebView.perform(caller, extras, fragmentManager);
+        @Override AuthenticationWay resolve(Context context) {
+            return OfficialVkApp.isAvailable(context) ? OfficialVkApp : CustomTabs.isAvailable(context) ? CustomTabs : WebView;
         }
-        @Override void perform(Fragment caller, Bundle extras, android.app.FragmentManager fragmentManager) {
-            if (OfficialVkApp.isAvailable(caller.getActivity())) OfficialVkApp.perform(caller, extras, fragmentManager);
-            else WebView.perform(caller, extras, fragmentManager);
-        }
-        @Override void perform(android.support.v4.app.Fragment caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager) {
-            if (OfficialVkApp.isAvailable(caller.getActivity())) OfficialVkApp.perform(caller, extras, fragmentManager);
-            else WebView.perform(caller, extras, fragmentManager);
-        }
-        @Override void perform(androidx.fragment.app.Fragment caller, Bundle extras, FragmentManager fragmentManager) {
-            if (OfficialVkApp.isAvailable(caller.getActivity())) OfficialVkApp.perform(caller, extras, fragmentManager);
-            else WebView.perform(caller, extras, fragmentManager);
+
+        @Override void perform(AuthLauncher launcher, Bundle extras) {
+            resolve(launcher.activity()).perform(launcher, extras);
         }
     };
 
     public boolean isAvailable(Context context) {
         return true;
     }
-    /*pkg*/ abstract void perform(Activity caller, Bundle extras, android.app.FragmentManager fragmentManager);
-    /*pkg*/ abstract void perform(android.support.v7.app.AppCompatActivity caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager);
-    /*pkg*/ abstract void perform(androidx.appcompat.app.AppCompatActivity caller, Bundle extras, androidx.fragment.app.FragmentManager fragmentManager);
-    /*pkg*/ abstract void perform(android.app.Fragment caller, Bundle extras, android.app.FragmentManager fragmentManager);
-    /*pkg*/ abstract void perform(android.support.v4.app.Fragment caller, Bundle extras, android.support.v4.app.FragmentManager fragmentManager);
-    /*pkg*/ abstract void perform(androidx.fragment.app.Fragment caller, Bundle extras, androidx.fragment.app.FragmentManager fragmentManager);
+    /**
+     * @return the way which will actually be used
+     */
+    /*pkg*/ AuthenticationWay resolve(Context context) {
+        return this;
+    }
+    /*pkg*/ abstract void perform(AuthLauncher launcher, Bundle extras);
 }
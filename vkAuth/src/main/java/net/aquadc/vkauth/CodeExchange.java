@@ -0,0 +1,166 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Authorization code flow with PKCE (RFC 7636).
+ * Code is exchanged for a token on a single background thread, so HttpURLConnection's keep-alive pool
+ * reuses one connection to the exchange endpoint; result is delivered on main thread.
+ */
+/*pkg*/ final class CodeExchange {
+    private CodeExchange() {}
+
+    private static final String Code = "code";
+    private static final int Base64Flags = Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP;
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+    private static final int Timeout = 15_000;
+    private static final SecureRandom Random = new SecureRandom();
+
+    /*pkg*/ interface Callback {
+        /**
+         * Called on main thread.
+         * @param token received token, or {@code null} if exchange has failed
+         */
+        void onExchanged(@Nullable VkAccessToken token);
+    }
+
+    /**
+     * @return a new random code verifier, 43 chars of base64url
+     */
+    /*pkg*/ static String newVerifier() {
+        byte[] bytes = new byte[32];
+        Random.nextBytes(bytes);
+        return Base64.encodeToString(bytes, Base64Flags);
+    }
+
+    /**
+     * @return S256 code challenge for the given verifier
+     */
+    /*pkg*/ static String challenge(String verifier) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not available");
+        }
+        return Base64.encodeToString(sha256.digest(verifier.getBytes(Ascii)), Base64Flags);
+    }
+
+    /**
+     * @return value of {@code code} parameter, or {@code null} if there's none
+     */
+    @Nullable /*pkg*/ static String findCode(@Nullable String params) {
+        if (params == null) return null;
+        final String[] code = { null };
+        QueryString.parse(params, new QueryString.Visitor() {
+            @Override public void parameter(String source, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+                if (QueryString.keyEquals(source, keyStart, keyEnd, Code)) {
+                    code[0] = QueryString.decode(source, valueStart, valueEnd);
+                }
+            }
+        });
+        return code[0] == null || code[0].isEmpty() ? null : code[0];
+    }
+
+    /*pkg*/ static void exchange(
+            final String url, final int appId, final String code, final String verifier, final String redirectUri,
+            final Callback callback
+    ) {
+        Holder.Executor.execute(new Runnable() {
+            @Override public void run() {
+                VkAccessToken token;
+                try {
+                    token = exchangeNow(url, appId, code, verifier, redirectUri);
+                } catch (IOException e) {
+                    token = null;
+                }
+                final VkAccessToken result = token;
+                Util.MainThread.Handler.post(new Runnable() {
+                    @Override public void run() {
+                        callback.onExchanged(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * POSTs form-encoded {@code grant_type}, {@code code}, {@code code_verifier}, {@code client_id}, and {@code redirect_uri},
+     * expects a JSON object with the same fields as in implicit flow redirect.
+     */
+    @Nullable /*pkg*/ static VkAccessToken exchangeNow(
+            String url, int appId, String code, String verifier, String redirectUri
+    ) throws IOException {
+        byte[] body = ("grant_type=authorization_code" +
+                "&code=" + URLEncoder.encode(code, "UTF-8") +
+                "&code_verifier=" + URLEncoder.encode(verifier, "UTF-8") +
+                "&client_id=" + appId +
+                "&redirect_uri=" + URLEncoder.encode(redirectUri, "UTF-8")).getBytes(Utf8);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(Timeout);
+        connection.setReadTimeout(Timeout);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setRequestProperty("Accept", "application/json");
+
+        OutputStream output = connection.getOutputStream();
+        try {
+            output.write(body);
+        } finally {
+            output.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String response = input == null ? "" : Util.readFully(input); // reading to the end lets the connection be reused
+        if (status >= 400) throw new IOException("token exchange failed with HTTP " + status);
+
+        try {
+            JSONObject json = new JSONObject(response);
+            if (json.has("error")) throw new IOException("token exchange failed: " + json.opt("error"));
+            VkAccessToken.Fields fields = new VkAccessToken.Fields();
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                fields.put(key, String.valueOf(json.get(key)));
+            }
+            return fields.create();
+        } catch (JSONException e) {
+            throw new IOException("malformed token exchange response", e);
+        }
+    }
+
+    private static final class Holder {
+        /*pkg*/ static final ExecutorService Executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VkAuth code exchange");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+}
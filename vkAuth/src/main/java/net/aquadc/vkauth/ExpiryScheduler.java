@@ -0,0 +1,137 @@
+package net.aquadc.vkauth;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * Notifies {@link VkApp}s when their current tokens are about to expire and when they expire.
+ * All apps share a single delayed message on the main thread, posted for the earliest upcoming event.
+ * Handler timings don't advance in deep sleep, so events may come late; {@link VkApp#getCurrentToken()} checks expiry, too.
+ */
+/*pkg*/ final class ExpiryScheduler implements Handler.Callback {
+
+    private static final int What = 1;
+    private static final long MaxDelay = 24 * 60 * 60 * 1000; // re-check at least daily, events beyond are rare
+
+    private static final ExpiryScheduler Instance = new ExpiryScheduler();
+
+    private static final class Entry {
+        /*pkg*/ final VkApp app;
+        /*pkg*/ VkAccessToken token;
+        /*pkg*/ long margin;
+        /*pkg*/ boolean soonFired, expiredFired;
+        /*pkg*/ Entry(VkApp app) {
+            this.app = app;
+        }
+        /*pkg*/ long nextEventAt() {
+            if (token == null || token.deadline == Long.MAX_VALUE || expiredFired) return Long.MAX_VALUE;
+            return soonFired ? token.deadline : token.deadline - margin;
+        }
+    }
+
+    private final ArrayList<Entry> entries = new ArrayList<>(1);
+    private Handler handler;
+
+    private ExpiryScheduler() {}
+
+    /**
+     * Starts tracking of {@code app}'s token, replacing the previous one.
+     * @param token current token of the app, or {@code null} to stop tracking
+     * @param marginMillis how long before expiry 'expiring soon' should be fired
+     */
+    /*pkg*/ static void schedule(VkApp app, @Nullable VkAccessToken token, long marginMillis) {
+        Instance.set(app, token, marginMillis);
+    }
+
+    private void set(VkApp app, @Nullable VkAccessToken token, long marginMillis) {
+        synchronized (entries) {
+            Entry entry = null;
+            for (int i = 0, size = entries.size(); i < size; i++) {
+                if (entries.get(i).app == app) {
+                    entry = entries.get(i);
+                    break;
+                }
+            }
+            if (entry == null) {
+                if (token == null) return;
+                entries.add(entry = new Entry(app));
+            }
+
+            if (entry.token != token) {
+                entry.token = token;
+                entry.soonFired = false;
+                entry.expiredFired = false;
+            }
+            entry.margin = marginMillis;
+            reschedule();
+        }
+    }
+
+    @Override public boolean handleMessage(Message msg) {
+        runDue();
+        return true;
+    }
+
+    /*pkg*/ void runDue() {
+        ArrayList<Event> events = null;
+        synchronized (entries) {
+            long now = VkClock.get().elapsedRealtime();
+            for (int i = 0, size = entries.size(); i < size; i++) {
+                Entry e = entries.get(i);
+                if (e.nextEventAt() > now) continue;
+
+                boolean expired = e.token.deadline <= now;
+                if (!e.soonFired) {
+                    e.soonFired = true;
+                    // don't tell it will expire soon if it has already expired
+                    if (!expired) (events == null ? events = new ArrayList<>() : events).add(new Event(e.app, e.token, false));
+                }
+                if (expired) {
+                    e.expiredFired = true;
+                    (events == null ? events = new ArrayList<>() : events).add(new Event(e.app, e.token, true));
+                }
+            }
+            reschedule();
+        }
+
+        // call out of lock
+        if (events != null) {
+            for (int i = 0, size = events.size(); i < size; i++) {
+                Event e = events.get(i);
+                if (e.expired) e.app.onTokenExpired(e.token);
+                else e.app.onTokenExpiringSoon(e.token);
+            }
+        }
+    }
+
+    private static final class Event {
+        /*pkg*/ final VkApp app;
+        /*pkg*/ final VkAccessToken token;
+        /*pkg*/ final boolean expired;
+        /*pkg*/ Event(VkApp app, VkAccessToken token, boolean expired) {
+            this.app = app;
+            this.token = token;
+            this.expired = expired;
+        }
+    }
+
+    private void reschedule() {
+        long next = Long.MAX_VALUE;
+        for (int i = 0, size = entries.size(); i < size; i++) {
+            next = Math.min(next, entries.get(i).nextEventAt());
+        }
+
+        Handler h = handler;
+        if (h == null) h = handler = new Handler(Looper.getMainLooper(), this);
+        h.removeMessages(What);
+        if (next != Long.MAX_VALUE) {
+            long delay = Math.max(0, next - VkClock.get().elapsedRealtime());
+            h.sendEmptyMessageDelayed(What, Math.min(delay, MaxDelay));
+        }
+    }
+
+}
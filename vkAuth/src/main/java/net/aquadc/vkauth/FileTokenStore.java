@@ -0,0 +1,175 @@
+package net.aquadc.vkauth;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.aquadc.vkauth.Util.required;
+
+/**
+ * Stores a token in a file.
+ * Writes are done in background, successive writes get coalesced,
+ * file is replaced atomically by renaming a temporary one.
+ * Reads return the latest written token even if it has not reached the disk yet.
+ */
+public final class FileTokenStore implements VkTokenStore {
+
+    private static final Object Erase = new Object();
+
+    private final Context context;
+    private final String fileName;
+    private File file;
+    private final Executor executor;
+
+    private final Object fileLock = new Object();
+    private final AtomicReference<Object> pending = new AtomicReference<>(); // VkAccessToken, Erase, or null if nothing to write
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Creates a store for the given app in application's private files directory.
+     * Directory is resolved in background, so this is safe to call on main thread.
+     */
+    public FileTokenStore(Context context, int appId) {
+        required(context, "context");
+        this.context = context.getApplicationContext();
+        this.fileName = "vk-token-" + appId;
+        this.file = null;
+        this.executor = DefaultExecutor.Instance;
+    }
+
+    /**
+     * Creates a store which keeps token in the given file.
+     * @param file     file to store token in, its directory must exist
+     * @param executor executor for I/O; for correct coalescing, it's preferred to be serial
+     */
+    public FileTokenStore(File file, Executor executor) {
+        required(file, "file", executor, "executor");
+        this.context = null;
+        this.fileName = null;
+        this.file = file;
+        this.executor = executor;
+    }
+
+    @Override public void read(final ReadCallback callback) {
+        required(callback, "callback");
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                callback.onTokenRead(readNow());
+            }
+        });
+    }
+
+    @Override public void write(@Nullable VkAccessToken token) {
+        pending.set(token == null ? Erase : token);
+        if (flushScheduled.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the token synchronously. Must not be called on main thread.
+     */
+    @Nullable /*pkg*/ VkAccessToken readNow() {
+        synchronized (fileLock) {
+            Object p = pending.get();
+            if (p != null) {
+                return p == Erase ? null : (VkAccessToken) p;
+            }
+
+            File file = file();
+            DataInputStream input;
+            try {
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            try {
+                return VkAccessToken.readFrom(input);
+            } catch (IOException e) {
+                return null; // corrupt or unsupported, treat as absent
+            } finally {
+                closeQuietly(input);
+            }
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        synchronized (fileLock) {
+            Object p = pending.get();
+            if (p == null) return; // already flushed by a previous run
+
+            File file = file();
+            try {
+                if (p == Erase) {
+                    if (!file.delete() && file.exists()) throw new IOException("can't delete " + file);
+                } else {
+                    writeAtomically(file, ((VkAccessToken) p).toByteArray());
+                }
+                // nothing new arrived while we were writing? Then we're done.
+                pending.compareAndSet(p, null);
+            } catch (IOException e) {
+                // keep it pending: next read will still see it, and next write will retry
+            }
+        }
+    }
+
+    private static void writeAtomically(File file, byte[] bytes) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            output.write(bytes);
+            output.flush();
+            output.getFD().sync();
+        } finally {
+            closeQuietly(output);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp + " to " + file);
+        }
+    }
+
+    private File file() {
+        File f = file;
+        if (f == null) {
+            f = file = new File(context.getFilesDir(), fileName);
+        }
+        return f;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class DefaultExecutor {
+        /*pkg*/ static final ExecutorService Instance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VkAuth token store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,47 @@
+package net.aquadc.vkauth;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Debug-only check that torn down objects become unreachable.
+ * Does nothing unless the app is debuggable. Main thread only.
+ */
+/*pkg*/ final class LeakWatcher {
+
+    private static final String Tag = "VkAuth";
+    private static final long Delay = 5000;
+
+    private LeakWatcher() {}
+
+    /**
+     * Logs a warning if {@code object} is still reachable a few seconds later, after a GC.
+     * @param what human-readable name of the object
+     */
+    /*pkg*/ static void watch(Context context, Object object, final String what) {
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) return;
+
+        final WeakReference<Object> ref = new WeakReference<>(object);
+        final Runnable check = new Runnable() {
+            @Override public void run() {
+                Runtime.getRuntime().gc();
+                System.runFinalization();
+                Runtime.getRuntime().gc();
+                if (ref.get() != null) {
+                    Log.w(Tag, what + " is still reachable " + Delay + " ms after teardown, it is probably leaked");
+                }
+            }
+        };
+        Util.MainThread.Handler.postDelayed(new Runnable() {
+            @Override public void run() {
+                // GC and finalization take a while, don't make UI jank for them
+                if (ref.get() != null) AsyncTask.THREAD_POOL_EXECUTOR.execute(check);
+            }
+        }, Delay);
+    }
+
+}
@@ -0,0 +1,84 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * A login which shows UI right now. Logins asking for the same or narrower scope meanwhile
+ * don't show anything but wait for its result. Main thread only.
+ */
+/*pkg*/ final class LoginFlight {
+
+    /**
+     * A flight whose result didn't come for this long is considered lost, e. g. with its Activity.
+     */
+    private static final long Timeout = 10 * 60 * 1000;
+
+    /**
+     * Identifies results of this login, see {@link VkApp#VkExtraFlightId}. Zero when it won't come back with the result.
+     */
+    /*pkg*/ final int id;
+    private final VkScopeSet scope;
+    private final WeakReference<Activity> host;
+    private final long startedAt;
+    private final ArrayList<VkApp.VkAuthCallback> waiters = new ArrayList<>(2);
+
+    /*pkg*/ LoginFlight(int id, Set<VkScope> scope, Activity host) {
+        this.id = id;
+        this.scope = VkScopeSet.copyOf(scope);
+        this.host = new WeakReference<>(host);
+        this.startedAt = VkClock.get().elapsedRealtime();
+    }
+
+    /**
+     * @return whether result of this flight may still come.
+     *         Activity is held weakly, so it may be collected after a configuration change, that's not a reason to give up
+     */
+    /*pkg*/ boolean isAlive() {
+        Activity activity = host.get();
+        return (activity == null || !activity.isFinishing())
+                && VkClock.get().elapsedRealtime() - startedAt < Timeout;
+    }
+
+    /*pkg*/ boolean covers(Set<VkScope> scope) {
+        return this.scope.containsAll(scope);
+    }
+
+    /*pkg*/ void join(VkApp.VkAuthCallback callback) {
+        waiters.add(callback);
+    }
+
+    /**
+     * @return a callback which passes the result to {@code primary} and then to everyone who joined this flight
+     */
+    /*pkg*/ VkApp.VkAuthCallback settling(final VkApp.VkAuthCallback primary, final VkApp app) {
+        return new VkApp.VkAuthCallback() {
+            @Override public void onResult(VkAccessToken token) {
+                primary.onResult(token);
+                for (int i = 0, size = waiters.size(); i < size; i++) {
+                    waiters.get(i).onResult(token);
+                }
+                waiters.clear();
+            }
+            @Override public void onError() {
+                primary.onError();
+                abandon(app);
+            }
+        };
+    }
+
+    /**
+     * Tells everyone who joined this flight and everyone awaiting a token it would have obtained that login has failed.
+     */
+    /*pkg*/ void abandon(VkApp app) {
+        for (int i = 0, size = waiters.size(); i < size; i++) {
+            waiters.get(i).onError();
+        }
+        waiters.clear();
+        app.failTokenFutures(scope);
+    }
+
+}
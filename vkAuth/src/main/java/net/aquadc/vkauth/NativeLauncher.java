@@ -0,0 +1,45 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+/**
+ * {@link AuthLauncher} for framework Activities and Fragments.
+ */
+/*pkg*/ final class NativeLauncher extends AuthLauncher {
+
+    private final Activity activity;
+    @Nullable private final android.app.Fragment fragment;
+    private final android.app.FragmentManager fragmentManager;
+
+    /*pkg*/ NativeLauncher(android.app.Activity activity, android.app.FragmentManager fragmentManager) {
+        this.activity = activity;
+        this.fragment = null;
+        this.fragmentManager = fragmentManager;
+    }
+
+    /*pkg*/ NativeLauncher(android.app.Fragment fragment, android.app.FragmentManager fragmentManager) {
+        this.activity = fragment.getActivity();
+        this.fragment = fragment;
+        this.fragmentManager = fragmentManager;
+    }
+
+    @Override /*pkg*/ Activity activity() {
+        return activity;
+    }
+
+    @Override /*pkg*/ void startActivityForResult(Intent intent, int requestCode) {
+        if (fragment == null) activity.startActivityForResult(intent, requestCode);
+        else fragment.startActivityForResult(intent, requestCode);
+    }
+
+    @Override /*pkg*/ void showOAuthDialog(Bundle arguments) {
+        android.app.DialogFragment dialog = new VkOAuthDialogHolder.NativeFragment();
+        dialog.setArguments(arguments);
+        if (fragment != null) dialog.setTargetFragment(fragment, 0);
+        dialog.show(fragmentManager, null);
+    }
+
+}
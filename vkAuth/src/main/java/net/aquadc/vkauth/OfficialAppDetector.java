@@ -0,0 +1,44 @@
+package net.aquadc.vkauth;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+
+/**
+ * Process-wide cache of official VK app detection.
+ * Resolving the auth activity and hashing package signatures is done once
+ * and then only after the VK app gets installed, replaced, or removed.
+ */
+/*pkg*/ final class OfficialAppDetector extends PackageCache<Boolean> {
+
+    /*pkg*/ static final String VkAppPackage = "com.vkontakte.android";
+    private static final String VkAppFingerprint = "48761EEF50EE53AFC4CC9C5F10E6BDE7F8F5B82F";
+    /*pkg*/ static final Intent AuthIntent = new Intent("com.vkontakte.android.action.SDK_AUTH").setPackage(VkAppPackage);
+
+    /*pkg*/ static final OfficialAppDetector Instance = new OfficialAppDetector();
+
+    private OfficialAppDetector() {
+        super(VkAppPackage);
+    }
+
+    /*pkg*/ static boolean isInstalled(Context context) {
+        return Instance.get(context);
+    }
+
+    @Override /*pkg*/ Boolean query(Context context) {
+        if (context.getPackageManager().queryIntentActivities(AuthIntent, PackageManager.MATCH_DEFAULT_ONLY).isEmpty()) {
+            return false;
+        }
+
+        String[] certs;
+        try {
+            certs = Util.getCertificateFingerprints(context, VkAppPackage);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false; // removed just after resolving
+        }
+
+        // todo complain about wrong VK app
+        return certs.length == 1 && VkAppFingerprint.equals(certs[0]);
+    }
+
+}
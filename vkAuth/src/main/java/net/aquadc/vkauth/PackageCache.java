@@ -0,0 +1,89 @@
+package net.aquadc.vkauth;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.support.annotation.Nullable;
+
+/**
+ * Process-wide cache of a PackageManager query.
+ * The query is done once and then only after a package gets installed, replaced, or removed.
+ */
+/*pkg*/ abstract class PackageCache<T> extends BroadcastReceiver {
+
+    @Nullable private final String packageName;
+    private final Object lock = new Object();
+    private boolean registered;
+    private int generation;
+    private volatile T value;
+
+    /**
+     * @param packageName the only package whose changes matter, or {@code null} for any package
+     */
+    /*pkg*/ PackageCache(@Nullable String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Called on any thread, possibly concurrently.
+     */
+    /*pkg*/ abstract T query(Context context);
+
+    /*pkg*/ final T get(Context context) {
+        T v = value;
+        return v == null ? detect(context) : v;
+    }
+
+    /**
+     * Queries in background, so subsequent {@link #get(Context)} calls will be cheap.
+     */
+    /*pkg*/ final void prime(Context context) {
+        final Context app = context.getApplicationContext();
+        if (value != null) return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override public void run() {
+                detect(app);
+            }
+        });
+    }
+
+    private T detect(Context context) {
+        int gen;
+        synchronized (lock) {
+            if (!registered) {
+                // register before querying, so we won't miss a change happening in the middle of detection
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+                filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+                filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+                filter.addDataScheme("package");
+                context.getApplicationContext().registerReceiver(this, filter);
+                registered = true;
+            }
+            gen = generation;
+        }
+
+        T v = query(context);
+
+        synchronized (lock) {
+            if (gen == generation) {
+                value = v;
+            } // else packages have changed while we were querying, don't cache a possibly stale result
+        }
+        return v;
+    }
+
+    @Override public final void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (packageName != null && (data == null || !packageName.equals(data.getSchemeSpecificPart()))) return;
+
+        synchronized (lock) {
+            generation++;
+            value = null;
+        }
+    }
+
+}
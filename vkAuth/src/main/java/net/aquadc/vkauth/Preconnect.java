@@ -0,0 +1,84 @@
+package net.aquadc.vkauth;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Warms up connection to OAuth host of a {@link VkApp} before login, without loading any page.
+ * A HEAD request is made in background: it fills system DNS cache shared with WebView and browsers,
+ * and wakes mobile radio up. WebView and browsers keep their own connection pools,
+ * so Custom Tabs browser additionally gets a hint to connect by itself.
+ * Idle connections get closed soon, so a preconnect is considered fresh only for {@link #Ttl}.
+ * Main thread only.
+ */
+/*pkg*/ final class Preconnect {
+
+    private static final long Ttl = 60 * 1000;
+    private static final int Timeout = 15_000;
+
+    private long startedAt; // VkClock.elapsedRealtime(), 0 if never started
+    private AuthenticationWay way;
+    private long startNanos;
+    private volatile long durationNanos; // 0 while connecting
+
+    /**
+     * Starts preconnect, unless a fresh one exists.
+     * @param oAuthHost scheme and host, like {@code https://oauth.vk.com}
+     * @param way       the way login is likely to be performed, never {@link AuthenticationWay#Auto}
+     */
+    /*pkg*/ void start(Context context, String oAuthHost, AuthenticationWay way) {
+        long now = VkClock.get().elapsedRealtime();
+        if (isFresh(now)) return;
+        startedAt = now;
+        this.way = way;
+        final long start = startNanos = System.nanoTime();
+        durationNanos = 0;
+
+        final String root = oAuthHost + '/';
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override public void run() {
+                AuthMetrics.traceBegin("VkAuth preconnect");
+                HttpURLConnection connection = null;
+                try {
+                    connection = (HttpURLConnection) new URL(root).openConnection();
+                    connection.setConnectTimeout(Timeout);
+                    connection.setReadTimeout(Timeout);
+                    connection.setInstanceFollowRedirects(false);
+                    connection.setRequestMethod("HEAD");
+                    connection.getResponseCode();
+                } catch (IOException ignored) {
+                    // offline, nothing to warm up
+                } finally {
+                    if (connection != null) connection.disconnect();
+                    AuthMetrics.traceEnd();
+                    durationNanos = System.nanoTime() - start;
+                }
+            }
+        });
+
+        if (way == AuthenticationWay.CustomTabs) {
+            VkCustomTabs.preconnect(context, Uri.parse(root));
+        }
+    }
+
+    private boolean isFresh(long now) {
+        return startedAt != 0 && now - startedAt < Ttl;
+    }
+
+    /**
+     * Reports {@link AuthMetricsListener.Stage#PRECONNECT} if a fresh preconnect was made for the way current flow uses.
+     * Its duration is the time taken by HEAD request, or the time elapsed so far if it's still in progress.
+     * @param way the way of current flow, never {@link AuthenticationWay#Auto}
+     */
+    /*pkg*/ void reportIfFresh(AuthMetrics metrics, AuthenticationWay way) {
+        if (way != this.way || !isFresh(VkClock.get().elapsedRealtime())) return;
+        long duration = durationNanos;
+        metrics.preconnectUsed(startNanos, duration == 0 ? System.nanoTime() - startNanos : duration);
+    }
+
+}
@@ -0,0 +1,102 @@
+package net.aquadc.vkauth;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Single-pass tokenizer for {@code application/x-www-form-urlencoded} strings,
+ * like query or fragment of OAuth redirect URL.
+ * Does not allocate by itself: visitor receives bounds of raw key and value
+ * and decides what to decode.
+ */
+/*pkg*/ final class QueryString {
+    private QueryString() {}
+
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    /*pkg*/ interface Visitor {
+        /**
+         * Called for each non-empty parameter, in order of appearance.
+         * Key without '=' has empty value, i. e. {@code valueStart == valueEnd}.
+         */
+        void parameter(String source, int keyStart, int keyEnd, int valueStart, int valueEnd);
+    }
+
+    /*pkg*/ static void parse(String source, Visitor visitor) {
+        parse(source, 0, source.length(), visitor);
+    }
+
+    /*pkg*/ static void parse(String source, int start, int end, Visitor visitor) {
+        int pairStart = start;
+        while (pairStart < end) {
+            int pairEnd = source.indexOf('&', pairStart);
+            if (pairEnd < 0 || pairEnd > end) pairEnd = end;
+
+            if (pairEnd > pairStart) { // skip empty pairs like in 'a=1&&b=2'
+                int eq = source.indexOf('=', pairStart);
+                if (eq < 0 || eq > pairEnd) {
+                    visitor.parameter(source, pairStart, pairEnd, pairEnd, pairEnd);
+                } else {
+                    visitor.parameter(source, pairStart, eq, eq + 1, pairEnd);
+                }
+            }
+
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    /**
+     * @return whether a key, encoded in the given bounds, is equal to {@code key}
+     */
+    /*pkg*/ static boolean keyEquals(String source, int start, int end, String key) {
+        if (needsDecoding(source, start, end)) {
+            return key.equals(decode(source, start, end));
+        }
+        return end - start == key.length() && source.regionMatches(start, key, 0, key.length());
+    }
+
+    /**
+     * Decodes percent-encoded string. Does not allocate anything but substring if there's nothing to decode.
+     * Malformed escapes are left as is.
+     */
+    /*pkg*/ static String decode(String source, int start, int end) {
+        if (!needsDecoding(source, start, end)) {
+            return source.substring(start, end);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '+') {
+                bytes.write(' ');
+            } else if (c == '%' && i + 2 < end && hex(source.charAt(i + 1)) >= 0 && hex(source.charAt(i + 2)) >= 0) {
+                bytes.write((hex(source.charAt(i + 1)) << 4) | hex(source.charAt(i + 2)));
+                i += 2;
+            } else if (c < 0x80) {
+                bytes.write(c);
+            } else { // not encoded non-ASCII, unlikely but possible
+                int len = Character.charCount(source.codePointAt(i));
+                byte[] utf = source.substring(i, i + len).getBytes(Utf8);
+                bytes.write(utf, 0, utf.length);
+                i += len - 1;
+            }
+        }
+        return new String(bytes.toByteArray(), Utf8);
+    }
+
+    private static boolean needsDecoding(String source, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '%' || c == '+') return true;
+        }
+        return false;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+}
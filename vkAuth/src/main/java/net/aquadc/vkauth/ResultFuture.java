@@ -0,0 +1,87 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future completed from outside, like Guava's SettableFuture. CompletableFuture is API 24+.
+ */
+/*pkg*/ class ResultFuture<T> implements Future<T> {
+
+    private static final int Pending = 0, Completed = 1, Failed = 2, Cancelled = 3;
+
+    private int state = Pending; // guarded by this
+    private T value;
+    private Throwable failure;
+
+    /*pkg*/ final boolean complete(@Nullable T value) {
+        return settle(Completed, value, null);
+    }
+
+    /*pkg*/ final boolean fail(Throwable failure) {
+        return settle(Failed, null, failure);
+    }
+
+    @Override public final boolean cancel(boolean mayInterruptIfRunning) {
+        return settle(Cancelled, null, null);
+    }
+
+    private boolean settle(int state, @Nullable T value, @Nullable Throwable failure) {
+        synchronized (this) {
+            if (this.state != Pending) return false;
+            this.state = state;
+            this.value = value;
+            this.failure = failure;
+            notifyAll();
+        }
+        onSettled();
+        return true;
+    }
+
+    /**
+     * Called once, on a thread which has settled this future.
+     */
+    /*pkg*/ void onSettled() {
+    }
+
+    @Override public final synchronized boolean isCancelled() {
+        return state == Cancelled;
+    }
+
+    @Override public final synchronized boolean isDone() {
+        return state != Pending;
+    }
+
+    @Override public final synchronized T get() throws InterruptedException, ExecutionException {
+        while (state == Pending) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override public final synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == Pending) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        switch (state) {
+            case Completed: return value;
+            case Failed: throw new ExecutionException(failure);
+            case Cancelled: throw new CancellationException();
+            default: throw new AssertionError();
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+/**
+ * {@link AuthLauncher} for Support library Activities and Fragments.
+ */
+/*pkg*/ final class SupportLauncher extends AuthLauncher {
+
+    private final Activity activity;
+    @Nullable private final android.support.v4.app.Fragment fragment;
+    private final android.support.v4.app.FragmentManager fragmentManager;
+
+    /*pkg*/ SupportLauncher(android.support.v7.app.AppCompatActivity activity, android.support.v4.app.FragmentManager fragmentManager) {
+        this.activity = activity;
+        this.fragment = null;
+        this.fragmentManager = fragmentManager;
+    }
+
+    /*pkg*/ SupportLauncher(android.support.v4.app.Fragment fragment, android.support.v4.app.FragmentManager fragmentManager) {
+        this.activity = fragment.getActivity();
+        this.fragment = fragment;
+        this.fragmentManager = fragmentManager;
+    }
+
+    @Override /*pkg*/ Activity activity() {
+        return activity;
+    }
+
+    @Override /*pkg*/ void startActivityForResult(Intent intent, int requestCode) {
+        if (fragment == null) activity.startActivityForResult(intent, requestCode);
+        else fragment.startActivityForResult(intent, requestCode);
+    }
+
+    @Override /*pkg*/ void showOAuthDialog(Bundle arguments) {
+        android.support.v4.app.DialogFragment dialog = new VkOAuthDialogHolder.CompatFragment();
+        dialog.setArguments(arguments);
+        if (fragment != null) dialog.setTargetFragment(fragment, 0);
+        dialog.show(fragmentManager, null);
+    }
+
+}
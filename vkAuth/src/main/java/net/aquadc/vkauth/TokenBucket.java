@@ -0,0 +1,49 @@
+package net.aquadc.vkauth;
+
+/**
+ * Token bucket rate limiter: holds up to {@code burst} permits, refills {@code perSecond} of them every second.
+ * Time is passed in, so it works with any clock. Not thread-safe.
+ */
+/*pkg*/ final class TokenBucket {
+
+    private final double perMilli;
+    private final int burst;
+    private double permits;
+    private long updatedAt;
+
+    /*pkg*/ TokenBucket(int perSecond, int burst, long nowMillis) {
+        this.perMilli = perSecond / 1000.0;
+        this.burst = burst;
+        this.permits = burst;
+        this.updatedAt = nowMillis;
+    }
+
+    /**
+     * Takes a permit, if any.
+     * @return 0 if a permit was taken, or how many milliseconds later it will be available
+     */
+    /*pkg*/ long tryAcquire(long nowMillis) {
+        refill(nowMillis);
+        if (permits >= 1) {
+            permits -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - permits) / perMilli));
+    }
+
+    /**
+     * Makes next permit available not earlier than in {@code millis}, e. g. when the server says limit is exceeded.
+     */
+    /*pkg*/ void backOff(long nowMillis, long millis) {
+        refill(nowMillis);
+        permits = Math.min(permits, 1 - millis * perMilli);
+    }
+
+    private void refill(long nowMillis) {
+        if (nowMillis > updatedAt) {
+            permits = Math.min(burst, permits + (nowMillis - updatedAt) * perMilli);
+            updatedAt = nowMillis;
+        }
+    }
+
+}
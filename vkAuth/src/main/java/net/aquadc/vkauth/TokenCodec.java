@@ -0,0 +1,219 @@
+package net.aquadc.vkauth;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary format of {@link VkAccessToken}:
+ * <pre>
+ * byte    version
+ * varint  body length
+ * body:
+ *   varint  presence flags of optional fields, unknown ones are ignored
+ *   string  access token
+ *   varint  TTL, seconds
+ *   string  user id
+ *   varlong creation time, millis
+ *   varint  scope mask, bit index is {@link VkScope#ordinal()}, unknown bits are ignored
+ *   string  secret, if present
+ *   string  email, if present
+ *   ...     fields added later, skipped by older readers
+ * </pre>
+ * Strings are UTF-8 prefixed with varint byte length.
+ * Version is bumped only on incompatible changes; new fields are appended to the body instead.
+ */
+/*pkg*/ final class TokenCodec {
+    private TokenCodec() {}
+
+    private static final int Version = 1;
+
+    private static final int MaxBodyLength = 64 * 1024; // tokens are tiny, don't allocate megabytes for garbage input
+
+    private static final int HasSecret = 1;
+    private static final int HasEmail = 1 << 1;
+
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    /*pkg*/ static byte[] encode(VkAccessToken token) {
+        byte[] accessToken = token.accessToken.getBytes(Utf8);
+        byte[] userId = token.userId.getBytes(Utf8);
+        byte[] secret = token.secret == null ? null : token.secret.getBytes(Utf8);
+        byte[] email = token.email == null ? null : token.email.getBytes(Utf8);
+        int flags = (secret == null ? 0 : HasSecret) | (email == null ? 0 : HasEmail);
+
+        int bodyLength = varIntSize(flags)
+                + stringSize(accessToken)
+                + varIntSize(token.ttlSeconds)
+                + stringSize(userId)
+                + varLongSize(token.creationTimeMillis)
+                + varIntSize(token.scope.mask)
+                + (secret == null ? 0 : stringSize(secret))
+                + (email == null ? 0 : stringSize(email));
+
+        byte[] out = new byte[1 + varIntSize(bodyLength) + bodyLength];
+        out[0] = Version;
+        int pos = putVarLong(out, 1, bodyLength & 0xFFFFFFFFL);
+        pos = putVarLong(out, pos, flags & 0xFFFFFFFFL);
+        pos = putString(out, pos, accessToken);
+        pos = putVarLong(out, pos, token.ttlSeconds & 0xFFFFFFFFL);
+        pos = putString(out, pos, userId);
+        pos = putVarLong(out, pos, token.creationTimeMillis);
+        pos = putVarLong(out, pos, token.scope.mask & 0xFFFFFFFFL);
+        if (secret != null) pos = putString(out, pos, secret);
+        if (email != null) pos = putString(out, pos, email);
+        if (pos != out.length) throw new AssertionError();
+        return out;
+    }
+
+    /*pkg*/ static VkAccessToken decode(byte[] bytes) throws IOException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /*pkg*/ static VkAccessToken decode(byte[] bytes, int offset, int length) throws IOException {
+        Reader r = new Reader(bytes, offset, offset + length);
+        checkVersion(r.readByte());
+        int bodyLength = r.readVarInt();
+        if (bodyLength < 0 || bodyLength > r.limit - r.pos) throw new IOException("truncated token: body length " + bodyLength + ", available " + (r.limit - r.pos));
+        return readBody(new Reader(bytes, r.pos, r.pos + bodyLength));
+    }
+
+    /**
+     * Decodes a token at buffer's position and advances position past it.
+     */
+    /*pkg*/ static VkAccessToken decode(ByteBuffer buffer) throws IOException {
+        checkVersion(buffer.get());
+        int bodyLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) throw new IOException("malformed varint");
+            byte b = buffer.get();
+            bodyLength |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (bodyLength < 0 || bodyLength > buffer.remaining()) throw new IOException("truncated token");
+
+        VkAccessToken token;
+        if (buffer.hasArray()) {
+            int start = buffer.arrayOffset() + buffer.position();
+            token = readBody(new Reader(buffer.array(), start, start + bodyLength));
+            buffer.position(buffer.position() + bodyLength);
+        } else {
+            byte[] body = new byte[bodyLength];
+            buffer.get(body);
+            token = readBody(new Reader(body, 0, bodyLength));
+        }
+        return token;
+    }
+
+    /*pkg*/ static VkAccessToken decode(DataInput input) throws IOException {
+        checkVersion(input.readByte());
+        int bodyLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) throw new IOException("malformed varint");
+            byte b = input.readByte();
+            bodyLength |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (bodyLength < 0 || bodyLength > MaxBodyLength) throw new IOException("malformed body length: " + bodyLength);
+        byte[] body = new byte[bodyLength];
+        input.readFully(body);
+        return readBody(new Reader(body, 0, bodyLength));
+    }
+
+    private static void checkVersion(byte version) throws IOException {
+        if (version != Version) throw new IOException("unsupported token format version: " + version);
+    }
+
+    private static VkAccessToken readBody(Reader r) throws IOException {
+        int flags = r.readVarInt();
+        String accessToken = r.readString();
+        int ttlSeconds = r.readVarInt();
+        String userId = r.readString();
+        long creationTimeMillis = r.readVarLong();
+        int scope = r.readVarInt();
+        String secret = (flags & HasSecret) == 0 ? null : r.readString();
+        String email = (flags & HasEmail) == 0 ? null : r.readString();
+        // the rest of body, if any, was written by a newer version, just skip it
+
+        if (accessToken.isEmpty() || userId.isEmpty() || ttlSeconds < 0) throw new IOException("invalid token");
+        return new VkAccessToken(
+                accessToken, ttlSeconds, userId, secret, creationTimeMillis, email, VkScopeSet.ofMask(scope)
+        );
+    }
+
+    // writing
+
+    private static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static int stringSize(byte[] utf8) {
+        return varIntSize(utf8.length) + utf8.length;
+    }
+
+    private static int putVarLong(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int putString(byte[] out, int pos, byte[] utf8) {
+        pos = putVarLong(out, pos, utf8.length);
+        System.arraycopy(utf8, 0, out, pos, utf8.length);
+        return pos + utf8.length;
+    }
+
+    // reading
+
+    private static final class Reader {
+        private final byte[] buf;
+        /*pkg*/ int pos;
+        /*pkg*/ final int limit;
+
+        /*pkg*/ Reader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        /*pkg*/ byte readByte() throws IOException {
+            if (pos >= limit) throw new IOException("truncated token");
+            return buf[pos++];
+        }
+
+        /*pkg*/ long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IOException("malformed varint");
+        }
+
+        /*pkg*/ int readVarInt() throws IOException {
+            long value = readVarLong();
+            if ((value & ~0xFFFFFFFFL) != 0) throw new IOException("varint overflow");
+            return (int) value;
+        }
+
+        /*pkg*/ String readString() throws IOException {
+            int length = readVarInt();
+            if (length < 0 || length > limit - pos) throw new IOException("truncated token");
+            String s = new String(buf, pos, length, Utf8);
+            pos += length;
+            return s;
+        }
+    }
+
+}
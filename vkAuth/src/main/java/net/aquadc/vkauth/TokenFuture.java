@@ -0,0 +1,27 @@
+package net.aquadc.vkauth;
+
+import java.util.Collection;
+
+/**
+ * A token which will be obtained by a login.
+ * @see VkApp#awaitToken(java.util.Set)
+ */
+/*pkg*/ final class TokenFuture extends ResultFuture<VkAccessToken> {
+
+    private final Collection<TokenFuture> registry;
+    /*pkg*/ final VkScopeSet scope;
+
+    /*pkg*/ TokenFuture(Collection<TokenFuture> registry, VkScopeSet scope) {
+        this.registry = registry;
+        this.scope = scope;
+    }
+
+    /*pkg*/ boolean fail() {
+        return fail(new IllegalStateException("login failed or was cancelled"));
+    }
+
+    @Override /*pkg*/ void onSettled() {
+        registry.remove(this);
+    }
+
+}
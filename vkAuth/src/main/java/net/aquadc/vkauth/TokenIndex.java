@@ -0,0 +1,94 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable snapshot of tokens of a {@link VkApp}, one per user, with an active one.
+ * Lookups are O(1) and {@link #list} is shared by all readers;
+ * mutations copy, which is fine for a dozen of accounts changing a few times per session.
+ * Least recently used accounts are evicted first, the active one is never evicted.
+ */
+/*pkg*/ final class TokenIndex {
+
+    /*pkg*/ static final TokenIndex Empty = new TokenIndex(Collections.<VkAccessToken>emptyList(), null);
+
+    /**
+     * Most recently used first.
+     */
+    /*pkg*/ final List<VkAccessToken> list;
+    private final HashMap<String, VkAccessToken> byUser;
+    @Nullable /*pkg*/ final VkAccessToken active;
+
+    private TokenIndex(List<VkAccessToken> mruFirst, @Nullable VkAccessToken active) {
+        this.list = Collections.unmodifiableList(mruFirst);
+        this.byUser = new HashMap<>(mruFirst.size() * 2);
+        for (int i = 0, size = mruFirst.size(); i < size; i++) {
+            VkAccessToken token = mruFirst.get(i);
+            byUser.put(token.userId, token);
+        }
+        this.active = active;
+    }
+
+    @Nullable /*pkg*/ VkAccessToken get(String userId) {
+        return byUser.get(userId);
+    }
+
+    /**
+     * @return an index where {@code token} replaces the one of the same user, is the most recently used and active
+     */
+    /*pkg*/ TokenIndex putActive(VkAccessToken token, int capacity) {
+        ArrayList<VkAccessToken> tokens = new ArrayList<>(Math.min(list.size() + 1, capacity));
+        tokens.add(token);
+        for (int i = 0, size = list.size(); i < size && tokens.size() < capacity; i++) {
+            VkAccessToken t = list.get(i);
+            if (!t.userId.equals(token.userId)) tokens.add(t);
+        }
+        return new TokenIndex(tokens, token);
+    }
+
+    /**
+     * @return an index where the given user's token is active, or this one, if there's no such user
+     */
+    /*pkg*/ TokenIndex activate(String userId, int capacity) {
+        VkAccessToken token = byUser.get(userId);
+        return token == null ? this : putActive(token, capacity);
+    }
+
+    /**
+     * @return an index without the given user's token; if it was active, there's no active token anymore
+     */
+    /*pkg*/ TokenIndex remove(String userId) {
+        VkAccessToken token = byUser.get(userId);
+        if (token == null) return this;
+        ArrayList<VkAccessToken> tokens = new ArrayList<>(list);
+        tokens.remove(token);
+        return tokens.isEmpty() ? Empty : new TokenIndex(tokens, active == token ? null : active);
+    }
+
+    /**
+     * @return an index without active token, others are kept
+     */
+    /*pkg*/ TokenIndex deactivate() {
+        return active == null ? this : new TokenIndex(list, null);
+    }
+
+    /**
+     * @return an index which has at most {@code capacity} tokens, keeping the active one
+     */
+    /*pkg*/ TokenIndex trimmed(int capacity) {
+        if (list.size() <= capacity) return this;
+        ArrayList<VkAccessToken> tokens = new ArrayList<>(capacity);
+        if (active != null) tokens.add(active);
+        for (int i = 0, size = list.size(); i < size && tokens.size() < capacity; i++) {
+            VkAccessToken t = list.get(i);
+            if (t != active) tokens.add(t);
+        }
+        return new TokenIndex(tokens, active);
+    }
+
+}
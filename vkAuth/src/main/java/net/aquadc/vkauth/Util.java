@@ -4,9 +4,15 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.util.DisplayMetrics;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
@@ -43,7 +49,7 @@ import java.util.Map;
 
     // from SO answer: https://stackoverflow.com/a/9855338/3050249
     private static final char[] HexAlphabet = "0123456789ABCDEF".toCharArray();
-    private static String toHex(byte[] bytes) {
+    /*pkg*/ static String toHex(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
         for ( int j = 0; j < bytes.length; j++ ) {
             int v = bytes[j] & 0xFF;
@@ -53,17 +59,17 @@ import java.util.Map;
         return new String(hexChars);
     }
 
-    @Nullable // from VK SDK
+    @Nullable
     /*pkg*/ static Map<String, String> explodeQueryString(@Nullable String queryString) {
         if (queryString == null) {
             return null;
         }
-        String[] keyValuePairs = queryString.split("&");
-        HashMap<String, String> parameters = new HashMap<>(keyValuePairs.length);
-        for (String keyValueString : keyValuePairs) {
-            String[] keyValueArray = keyValueString.split("=");
-            parameters.put(keyValueArray[0], keyValueArray[1]);
-        }
+        final HashMap<String, String> parameters = new HashMap<>();
+        QueryString.parse(queryString, new QueryString.Visitor() {
+            @Override public void parameter(String source, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+                parameters.put(QueryString.decode(source, keyStart, keyEnd), QueryString.decode(source, valueStart, valueEnd));
+            }
+        });
         return parameters;
     }
 
@@ -86,4 +92,24 @@ import java.util.Map;
         required(o3, n3);
     }
 
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+    /**
+     * Reads the stream to the end as UTF-8 and closes it.
+     */
+    /*pkg*/ static String readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            byte[] buf = new byte[512];
+            int read;
+            while ((read = input.read(buf)) >= 0) bytes.write(buf, 0, read);
+            return new String(bytes.toByteArray(), Utf8);
+        } finally {
+            input.close();
+        }
+    }
+
+    /*pkg*/ static final class MainThread {
+        /*pkg*/ static final Handler Handler = new Handler(Looper.getMainLooper());
+    }
+
 }
@@ -1,11 +1,16 @@
 package net.aquadc.vkauth;
 
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.text.TextUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -21,67 +26,125 @@ public final class VkAccessToken implements Parcelable {
     private static final String Email = "email";
     private static final String Scope = "scope";
 
-    @NonNull private final String accessToken;
-    private final int ttlSeconds;
-    @NonNull private final String userId;
-    @Nullable private final String secret;
-    private final long creationTimeMillis;
-    @Nullable private final String email;
-    @NonNull private final Set<VkScope> scope;
+    @NonNull /*pkg*/ final String accessToken;
+    /*pkg*/ final int ttlSeconds;
+    @NonNull /*pkg*/ final String userId;
+    @Nullable /*pkg*/ final String secret;
+    /*pkg*/ final long creationTimeMillis;
+    @Nullable /*pkg*/ final String email;
+    @NonNull /*pkg*/ final VkScopeSet scope;
+
+    /**
+     * {@link VkClock#elapsedRealtime()}-based expiry time, or {@link Long#MAX_VALUE} if token never expires.
+     * Computed once, so wall-clock changes after token creation won't affect it.
+     */
+    /*pkg*/ final long deadline;
 
     @Nullable
     /*pkg*/ static VkAccessToken create(@Nullable Map<String, String> parameters) {
-        // todo: real error-handling instead of returning nulls
         if (parameters == null) return null;
 
-        String accessToken = parameters.get(AccessToken);
-        if (accessToken == null || accessToken.isEmpty()) return null;
+        Fields fields = new Fields();
+        for (Map.Entry<String, String> param : parameters.entrySet()) {
+            fields.put(param.getKey(), param.getValue());
+        }
+        return fields.create();
+    }
 
-        String expiry = parameters.get(ExpiresIn);
-        int expiresIn;
-        try {
-            expiresIn = expiry == null ? 0 : Integer.parseInt(expiry);
-        } catch (NumberFormatException e) {
-            return null;
+    /**
+     * Parses token right from query or fragment string, without building a map.
+     */
+    @Nullable
+    /*pkg*/ static VkAccessToken create(@Nullable String queryString) {
+        if (queryString == null) return null;
+
+        Fields fields = new Fields();
+        QueryString.parse(queryString, fields);
+        return fields.create();
+    }
+
+    /**
+     * Raw token fields. Repeated keys are overwritten, the last one wins.
+     */
+    /*pkg*/ static final class Fields implements QueryString.Visitor {
+        private String accessToken;
+        private String expiresIn;
+        private String userId;
+        private String secret;
+        private String created;
+        private String email;
+        private String scope;
+
+        /*pkg*/ void put(String key, String value) {
+            switch (key) {
+                case AccessToken: accessToken = value; break;
+                case ExpiresIn: expiresIn = value; break;
+                case UserId: userId = value; break;
+                case Secret: secret = value; break;
+                case Created: created = value; break;
+                case Email: email = value; break;
+                case Scope: scope = value; break;
+                // ignore unknown
+            }
         }
-        if (expiresIn < 0) return null;
 
-        String userId = parameters.get(UserId);
-        if (userId == null || userId.isEmpty()) return null;
+        @Override public void parameter(String source, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+            String key;
+            if (QueryString.keyEquals(source, keyStart, keyEnd, AccessToken)) key = AccessToken;
+            else if (QueryString.keyEquals(source, keyStart, keyEnd, ExpiresIn)) key = ExpiresIn;
+            else if (QueryString.keyEquals(source, keyStart, keyEnd, UserId)) key = UserId;
+            else if (QueryString.keyEquals(source, keyStart, keyEnd, Secret)) key = Secret;
+            else if (QueryString.keyEquals(source, keyStart, keyEnd, Created)) key = Created;
+            else if (QueryString.keyEquals(source, keyStart, keyEnd, Email)) key = Email;
+            else if (QueryString.keyEquals(source, keyStart, keyEnd, Scope)) key = Scope;
+            else return; // don't decode values we're not interested in
+
+            put(key, QueryString.decode(source, valueStart, valueEnd));
+        }
 
-        String secret = parameters.get(Secret);
+        @Nullable
+        /*pkg*/ VkAccessToken create() {
+            // todo: real error-handling instead of returning nulls
+            if (accessToken == null || accessToken.isEmpty()) return null;
 
-        String createdStr = parameters.get(Created);
-        long created;
-        if (createdStr != null) { // won't arrive from App/WebView, only from another token
+            int expiresIn;
             try {
-                created = Long.parseLong(createdStr);
+                expiresIn = this.expiresIn == null || this.expiresIn.isEmpty() ? 0 : Integer.parseInt(this.expiresIn);
             } catch (NumberFormatException e) {
                 return null;
             }
-        } else {
-            created = System.currentTimeMillis();
-        }
+            if (expiresIn < 0) return null;
 
-        String email = parameters.get(Email);
+            if (userId == null || userId.isEmpty()) return null;
 
-        String scopeStr = parameters.get(Scope);
-        Set<VkScope> scope;
-        if (scopeStr != null && !scopeStr.isEmpty()) {
-            try {
-                scope = VkScope.asSet(scopeStr.split(","));
-            } catch (NoSuchElementException e) {
-                return null;
+            long created;
+            if (this.created != null) { // won't arrive from App/WebView, only from another token
+                try {
+                    created = Long.parseLong(this.created);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                created = VkClock.get().currentTimeMillis();
+            }
+
+            VkScopeSet scope;
+            if (this.scope != null && !this.scope.isEmpty()) {
+                try {
+                    scope = VkScopeSet.parse(this.scope);
+                } catch (NoSuchElementException e) {
+                    return null;
+                }
+            } else {
+                scope = VkScopeSet.of();
             }
-        } else {
-            scope = Collections.emptySet();
-        }
 
-        return new VkAccessToken(accessToken, expiresIn, userId, secret, created, email, scope);
+            return new VkAccessToken(accessToken, expiresIn, userId, secret, created, email, scope);
+        }
     }
 
-    private VkAccessToken(@NonNull String accessToken, int ttlSeconds, @NonNull String userId, @Nullable String secret,
-                          long creationTimeMillis, @Nullable String email, @NonNull Set<VkScope> scope) {
+    /*pkg*/ VkAccessToken(@NonNull String accessToken, int ttlSeconds, @NonNull String userId, @Nullable String secret,
+                          long creationTimeMillis, @Nullable String email, @NonNull VkScopeSet scope) {
         this.accessToken = accessToken;
         this.ttlSeconds = ttlSeconds;
         this.userId = userId;
@@ -89,25 +152,14 @@ public final class VkAccessToken implements Parcelable {
         this.creationTimeMillis = creationTimeMillis;
         this.email = email;
         this.scope = scope;
-    }
-
-    private Map<String, String> tokenParams() {
-        Map<String, String> params = new HashMap<>();
-        params.put(AccessToken, accessToken);
-        params.put(ExpiresIn, "" + ttlSeconds);
-        params.put(UserId, userId);
-        params.put(Created, "" + creationTimeMillis);
-        if (!scope.isEmpty()) {
-            params.put(Scope, TextUtils.join(",", scope));
-        }
 
-        if (secret != null) {
-            params.put(Secret, secret);
-        }
-        if (email != null) {
-            params.put(Email, email);
+        if (ttlSeconds == 0) {
+            this.deadline = Long.MAX_VALUE;
+        } else {
+            VkClock clock = VkClock.get();
+            long expiresAt = creationTimeMillis + 1000L * ttlSeconds;
+            this.deadline = clock.elapsedRealtime() + (expiresAt - clock.currentTimeMillis());
         }
-        return params;
     }
 
     @NonNull public String getAccessToken() {
@@ -115,7 +167,15 @@ public final class VkAccessToken implements Parcelable {
     }
 
     public boolean isValid() {
-        return !(ttlSeconds > 0 && ttlSeconds * 1000 + creationTimeMillis < System.currentTimeMillis());
+        return isValid(0);
+    }
+
+    /**
+     * @param marginMillis how long the token must stay valid from now
+     * @return whether this token won't expire in {@code marginMillis}
+     */
+    public boolean isValid(long marginMillis) {
+        return deadline == Long.MAX_VALUE || VkClock.get().elapsedRealtime() + marginMillis <= deadline;
     }
 
     @NonNull public String getUserId() {
@@ -130,7 +190,7 @@ public final class VkAccessToken implements Parcelable {
     }
 
     @NonNull public Date getExpiryDate() {
-        return new Date(creationTimeMillis + 1000 * ttlSeconds);
+        return new Date(creationTimeMillis + 1000L * ttlSeconds);
     }
 
     @Nullable public String getEmail() {
@@ -141,11 +201,19 @@ public final class VkAccessToken implements Parcelable {
         return scope;
     }
 
-    @Nullable
+    /**
+     * @return a token with fields of {@code token}, falling back to this token's ones
+     * for optional fields which are absent in {@code token}
+     */
+    @NonNull
     /*pkg*/ VkAccessToken overriddenBy(@NonNull VkAccessToken token) {
-        Map<String, String> newTokenParams = tokenParams();
-        newTokenParams.putAll(token.tokenParams());
-        return create(newTokenParams);
+        return new VkAccessToken(
+                token.accessToken, token.ttlSeconds, token.userId,
+                token.secret == null ? secret : token.secret,
+                token.creationTimeMillis,
+                token.email == null ? email : token.email,
+                token.scope.isEmpty() ? scope : token.scope
+        );
     }
 
     @Override
@@ -162,40 +230,75 @@ public final class VkAccessToken implements Parcelable {
     }
 
 
+    /**
+     * Serializes this token into compact binary form.
+     * The format is versioned and forward-compatible: tokens written by newer library versions
+     * can be read by older ones, unknown fields are skipped.
+     */
+    @NonNull public byte[] toByteArray() {
+        return TokenCodec.encode(this);
+    }
+
+    /**
+     * Writes this token in the same format as {@link #toByteArray()}.
+     */
+    public void writeTo(@NonNull DataOutput output) throws IOException {
+        output.write(TokenCodec.encode(this));
+    }
+
+    /**
+     * Writes this token in the same format as {@link #toByteArray()} at buffer's position.
+     * @throws java.nio.BufferOverflowException if there's not enough space in the buffer
+     */
+    public void writeTo(@NonNull ByteBuffer buffer) {
+        buffer.put(TokenCodec.encode(this));
+    }
+
+    /**
+     * Reads a token written by {@link #toByteArray()}.
+     * @throws IOException if data is truncated, malformed, or has unsupported version
+     */
+    @NonNull public static VkAccessToken fromByteArray(@NonNull byte[] bytes) throws IOException {
+        return TokenCodec.decode(bytes);
+    }
+
+    /**
+     * Reads a token written by {@link #writeTo(DataOutput)}.
+     * @throws IOException if data is truncated, malformed, or has unsupported version
+     */
+    @NonNull public static VkAccessToken readFrom(@NonNull DataInput input) throws IOException {
+        return TokenCodec.decode(input);
+    }
+
+    /**
+     * Reads a token written by {@link #writeTo(ByteBuffer)} at buffer's position and advances position past it.
+     * @throws IOException if data is truncated, malformed, or has unsupported version
+     */
+    @NonNull public static VkAccessToken readFrom(@NonNull ByteBuffer buffer) throws IOException {
+        try {
+            return TokenCodec.decode(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated token", e);
+        }
+    }
+
+
     @Override public int describeContents() {
         return 0;
     }
     @Override public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(this.accessToken);
-        dest.writeInt(this.ttlSeconds);
-        dest.writeString(this.userId);
-        dest.writeString(this.secret);
-        dest.writeLong(this.creationTimeMillis);
-        dest.writeString(this.email);
-        dest.writeInt(scope.size());
-        for (VkScope s : scope) {
-            dest.writeString(s.scopeName);
-        }
+        dest.writeByteArray(TokenCodec.encode(this));
     }
     public static final Creator<VkAccessToken> CREATOR = new Creator<VkAccessToken>() {
         @Override public VkAccessToken createFromParcel(Parcel in) {
-            String accessToken = in.readString();
-            int ttlSeconds = in.readInt();
-            String userId = in.readString();
-            String secret = in.readString();
-            long creationTimeMillis = in.readLong();
-            String email = in.readString();
-            int size = in.readInt();
-            String[] scope = new String[size];
-            for (int i = 0; i < size; i++) {
-                scope[i] = in.readString();
+            try {
+                return TokenCodec.decode(in.createByteArray());
+            } catch (IOException e) {
+                throw new BadParcelableException(e);
             }
-            return new VkAccessToken(
-                    accessToken, ttlSeconds, userId, secret, creationTimeMillis, email, VkScope.asSet(scope)
-            );
         }
         @Override public VkAccessToken[] newArray(int size) {
             return new VkAccessToken[size];
         }
     };
-}
\ No newline at end of file
+}
@@ -0,0 +1,409 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static net.aquadc.vkauth.Util.required;
+
+/**
+ * Calls VK API methods on behalf of current account of a {@link VkApp}.
+ * Calls issued within {@link #setBatchWindow(long) batch window} are sent together in one {@code execute} request,
+ * up to 25 at once, so a burst of calls costs one round trip and one request of rate limit.
+ * Requests are sent one by one from a single background thread shared by all clients,
+ * so HttpURLConnection's keep-alive pool reuses one connection. The thread stops when there's nothing to send,
+ * so a client needs no closing.
+ * Calls are queued per access token they were issued with and paced by a token bucket,
+ * {@link #setRateLimit(int, int) 3 requests per second} by default, like VK requires for user tokens;
+ * while waiting for rate limit, more calls join the batch. {@link Priority#USER_VISIBLE} calls are sent first,
+ * {@link Priority#PREFETCH} ones fill the rest of a batch.
+ */
+public final class VkApiClient {
+
+    public enum Priority {
+        /** Something user is waiting for. */
+        USER_VISIBLE,
+        /** Data which may be needed later. */
+        PREFETCH,
+    }
+
+    public static final String DefaultEndpoint = "https://api.vk.com/method/";
+    private static final int MaxBatchSize = 25; // execute can't do more
+    private static final int DefaultRequestsPerSecond = 3, DefaultBurst = 1;
+    private static final long DefaultBatchWindow = 10;
+    private static final int TooManyRequests = 6, MaxAttempts = 3;
+    private static final long RetryDelay = 1000;
+    private static final int Timeout = 15_000;
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    private final VkApp app;
+    private volatile String endpoint = DefaultEndpoint;
+    private volatile String version = VkApp.VkApiVersion;
+    private volatile long batchWindow = DefaultBatchWindow;
+
+    private volatile ApiMetricsListener metricsListener;
+
+    private final ApiScheduler scheduler = new ApiScheduler(DefaultRequestsPerSecond, DefaultBurst); // guarded by itself
+    private ScheduledFuture<?> pendingFlush; // guarded by scheduler
+    private long pendingFlushAt; // guarded by scheduler
+    private final Runnable flush = new Runnable() {
+        @Override public void run() {
+            flush();
+        }
+    };
+
+    public VkApiClient(VkApp app) {
+        required(app, "app");
+        this.app = app;
+    }
+
+    /**
+     * Sets API endpoint, e. g. a local stand-in for tests.
+     * @param endpoint URL which method names are appended to, with trailing slash, {@link #DefaultEndpoint} by default
+     */
+    public void setEndpoint(String endpoint) {
+        required(endpoint, "endpoint");
+        if (!endpoint.endsWith("/")) throw new IllegalArgumentException("endpoint must end with a slash: " + endpoint);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Sets API version sent with every request, {@code 5.62} by default.
+     */
+    public void setVersion(String version) {
+        required(version, "version");
+        this.version = version;
+    }
+
+    /**
+     * Sets how long a call waits for others to be sent together with them. Default is 10 ms.
+     * Zero sends calls as soon as possible, still batching those which were issued while previous request was in flight.
+     */
+    public void setBatchWindow(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("batch window must be non-negative, got " + millis);
+        batchWindow = millis;
+    }
+
+    /**
+     * Sets rate limit for requests made with a single token. A batch counts as one request.
+     * Applies to tokens which have no queued calls yet.
+     * @param requestsPerSecond permits added every second
+     * @param burst             how many permits may be accumulated while idle
+     */
+    public void setRateLimit(int requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0) throw new IllegalArgumentException("requestsPerSecond must be positive, got " + requestsPerSecond);
+        if (burst <= 0) throw new IllegalArgumentException("burst must be positive, got " + burst);
+        synchronized (scheduler) {
+            scheduler.setRateLimit(requestsPerSecond, burst);
+        }
+    }
+
+    /**
+     * Sets a listener for queue wait times.
+     * @param listener a listener to set, or {@code null} to remove current one
+     */
+    public void setMetricsListener(@Nullable ApiMetricsListener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * @return number of calls of given priority waiting to be sent
+     */
+    public int getQueueDepth(Priority priority) {
+        required(priority, "priority");
+        synchronized (scheduler) {
+            return scheduler.depth(priority);
+        }
+    }
+
+    /**
+     * Calls an API method with {@link Priority#USER_VISIBLE} priority.
+     * @see #call(String, Map, Priority)
+     */
+    public Future<Object> call(String method, @Nullable Map<String, String> params) {
+        return call(method, params, Priority.USER_VISIBLE);
+    }
+
+    /**
+     * Calls an API method with current token of the app.
+     * Future fails with {@link VkApiException} if VK returns an error for this call,
+     * {@link IOException} on network or protocol error,
+     * {@link IllegalStateException} if there's no valid token,
+     * or {@link java.util.concurrent.RejectedExecutionException} if there are too many queued calls.
+     * The call is cancelled if current token is replaced or expires before the call is sent.
+     * @param method   method name, like {@code users.get}
+     * @param params   method parameters, except {@code access_token} and {@code v} which are added automatically
+     * @param priority which calls are sent first
+     * @return a future of {@code response} field, i. e. JSONObject, JSONArray, String, Number, or Boolean
+     */
+    public Future<Object> call(String method, @Nullable Map<String, String> params, Priority priority) {
+        required(method, "method", priority, "priority");
+        if (!isMethodName(method)) throw new IllegalArgumentException("not a method name: " + method);
+        long now = VkClock.get().elapsedRealtime();
+        Call call = new Call(method, params == null ? Collections.<String, String>emptyMap() : new HashMap<>(params), priority, now);
+
+        VkAccessToken token = app.getCurrentToken();
+        if (token == null || !token.isValid()) {
+            call.fail(new IllegalStateException("there's no valid token"));
+            return call;
+        }
+        synchronized (scheduler) {
+            if (!scheduler.enqueue(token.getAccessToken(), call, now)) {
+                call.fail(new RejectedExecutionException("more than " + ApiScheduler.LaneCapacity + " " + priority + " calls queued"));
+                return call;
+            }
+            // a full batch doesn't wait
+            requestFlush(scheduler.size(token.getAccessToken()) >= MaxBatchSize ? 0 : batchWindow);
+        }
+        return call;
+    }
+
+    /**
+     * Makes flush happen in {@code delayMillis} or earlier.
+     */
+    private void requestFlush(long delayMillis) { // guarded by scheduler
+        long at = VkClock.get().elapsedRealtime() + delayMillis;
+        if (pendingFlush != null) {
+            if (pendingFlushAt <= at) return;
+            pendingFlush.cancel(false);
+        }
+        pendingFlush = Sender.Executor.schedule(flush, delayMillis, TimeUnit.MILLISECONDS);
+        pendingFlushAt = at;
+    }
+
+    private static boolean isMethodName(String method) {
+        int dot = method.indexOf('.');
+        if (dot <= 0 || dot == method.length() - 1 || method.indexOf('.', dot + 1) >= 0) return false;
+        for (int i = 0, length = method.length(); i < length; i++) {
+            char c = method.charAt(i);
+            if (c != '.' && !(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends queued calls until the queue is empty or rate limit is hit. Executor thread only.
+     */
+    private void flush() {
+        synchronized (scheduler) {
+            pendingFlush = null;
+        }
+        ArrayList<Call> batch = new ArrayList<>(MaxBatchSize);
+        int[] depths = new int[Priority.values().length];
+        for (;;) {
+            VkAccessToken token = app.getCurrentToken();
+            String accessToken = token != null && token.isValid() ? token.getAccessToken() : null;
+            long now = VkClock.get().elapsedRealtime();
+            List<Call> stale;
+            batch.clear();
+            synchronized (scheduler) {
+                stale = scheduler.retainOnly(accessToken);
+                if (accessToken != null && scheduler.size(accessToken) > 0) {
+                    long wait = scheduler.tryAcquire(accessToken, now);
+                    if (wait > 0) requestFlush(wait);
+                    else scheduler.poll(accessToken, MaxBatchSize, batch);
+                    for (Priority priority : Priority.values()) depths[priority.ordinal()] = scheduler.depth(priority);
+                }
+            }
+            for (int i = 0, size = stale.size(); i < size; i++) {
+                stale.get(i).cancel(false); // token was replaced or has expired
+            }
+            if (batch.isEmpty()) return;
+
+            ApiMetricsListener listener = metricsListener;
+            if (listener != null) {
+                for (int i = 0, size = batch.size(); i < size; i++) {
+                    Call call = batch.get(i);
+                    listener.onCallSent(call.method, call.priority, now - call.enqueuedAt, depths[call.priority.ordinal()]);
+                }
+            }
+            send(batch, token);
+        }
+    }
+
+    private void send(List<Call> batch, VkAccessToken token) {
+        try {
+            if (batch.size() == 1) {
+                Call call = batch.get(0);
+                JSONObject json = post(call.method, call.params, token);
+                JSONObject error = json.optJSONObject("error");
+                if (error == null) call.complete(json.opt("response"));
+                else if (!retry(batch, token, error)) call.fail(apiError(error));
+            } else {
+                JSONObject json = post("execute", Collections.singletonMap("code", script(batch)), token);
+                JSONObject error = json.optJSONObject("error");
+                if (error != null) {
+                    if (!retry(batch, token, error)) failAll(batch, apiError(error));
+                    return;
+                }
+                demultiplex(batch, json);
+            }
+        } catch (IOException e) {
+            failAll(batch, e);
+        } catch (JSONException e) {
+            failAll(batch, new IOException("malformed API response", e));
+        }
+    }
+
+    /**
+     * Puts the batch back to queue if it was rejected by rate limit and none of its calls has run out of attempts.
+     * @return whether the batch will be retried
+     */
+    private boolean retry(List<Call> batch, VkAccessToken token, JSONObject error) {
+        if (error.optInt("error_code") != TooManyRequests) return false;
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            if (++batch.get(i).attempts >= MaxAttempts) return false;
+        }
+        synchronized (scheduler) {
+            // the bucket holds the token's calls for a while, so neither this flush loop nor an already scheduled flush resends them now
+            scheduler.requeue(token.getAccessToken(), batch, VkClock.get().elapsedRealtime(), RetryDelay);
+            requestFlush(RetryDelay);
+        }
+        return true;
+    }
+
+    /**
+     * @return VKScript which calls all methods and returns an array of their results
+     */
+    /*pkg*/ static String script(List<Call> batch) {
+        StringBuilder sb = new StringBuilder(64 * batch.size()).append("return [");
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            Call call = batch.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("API.").append(call.method).append('(').append(new JSONObject(call.params).toString()).append(')');
+        }
+        return sb.append("];").toString();
+    }
+
+    /**
+     * Distributes {@code execute} results between calls. A failed call returns {@code false},
+     * and its error is appended to {@code execute_errors}. A method may return {@code false} legitimately too,
+     * so errors are matched to {@code false} results by their {@code method}, in order.
+     * Calls of the same method can be told apart only by order.
+     */
+    /*pkg*/ static void demultiplex(List<Call> batch, JSONObject json) throws JSONException {
+        JSONArray responses = json.getJSONArray("response");
+        JSONArray errors = json.optJSONArray("execute_errors");
+        boolean[] taken = errors == null ? null : new boolean[errors.length()];
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            Call call = batch.get(i);
+            Object response = responses.opt(i);
+            JSONObject error = Boolean.FALSE.equals(response) && errors != null ? takeError(errors, taken, call.method) : null;
+            if (error != null) {
+                call.fail(apiError(error));
+            } else {
+                call.complete(response);
+            }
+        }
+    }
+
+    @Nullable private static JSONObject takeError(JSONArray errors, boolean[] taken, String method) {
+        for (int i = 0, size = errors.length(); i < size; i++) {
+            JSONObject error = errors.optJSONObject(i);
+            if (taken[i] || error == null) continue;
+            String errorMethod = error.optString("method", null);
+            if (errorMethod == null || errorMethod.equals(method)) { // some API versions don't tell the method
+                taken[i] = true;
+                return error;
+            }
+        }
+        return null;
+    }
+
+    private JSONObject post(String method, Map<String, String> params, VkAccessToken token) throws IOException, JSONException {
+        StringBuilder form = new StringBuilder(128)
+                .append("access_token=").append(URLEncoder.encode(token.getAccessToken(), "UTF-8"))
+                .append("&v=").append(URLEncoder.encode(version, "UTF-8"));
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            form.append('&').append(URLEncoder.encode(param.getKey(), "UTF-8"))
+                    .append('=').append(URLEncoder.encode(String.valueOf(param.getValue()), "UTF-8"));
+        }
+        byte[] body = form.toString().getBytes(Utf8);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + method).openConnection();
+        connection.setConnectTimeout(Timeout);
+        connection.setReadTimeout(Timeout);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setRequestProperty("Accept", "application/json");
+
+        OutputStream output = connection.getOutputStream();
+        try {
+            output.write(body);
+        } finally {
+            output.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String response = input == null ? "" : Util.readFully(input); // reading to the end lets the connection be reused
+        if (status >= 400) throw new IOException(method + " failed with HTTP " + status);
+        return new JSONObject(response);
+    }
+
+    private static VkApiException apiError(JSONObject error) {
+        return new VkApiException(error.optInt("error_code"), error.optString("error_msg"));
+    }
+
+    private static void failAll(List<Call> batch, Exception e) {
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            batch.get(i).fail(e);
+        }
+    }
+
+    /**
+     * A thread shared by all clients, started on first call and stopped after a while without calls.
+     */
+    private static final class Sender {
+        private static final long KeepAlive = 30;
+        /*pkg*/ static final ScheduledThreadPoolExecutor Executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VkApiClient");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        static {
+            Executor.setKeepAliveTime(KeepAlive, TimeUnit.SECONDS);
+            Executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /*pkg*/ static final class Call extends ResultFuture<Object> {
+        /*pkg*/ final String method;
+        /*pkg*/ final Map<String, String> params;
+        /*pkg*/ final Priority priority;
+        /*pkg*/ final long enqueuedAt;
+        /*pkg*/ int attempts; // executor thread only
+        /*pkg*/ Call(String method, Map<String, String> params, Priority priority, long enqueuedAt) {
+            this.method = method;
+            this.params = params;
+            this.priority = priority;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package net.aquadc.vkauth;
+
+/**
+ * An error returned by VK API for a single call.
+ * @see VkApiClient#call(String, java.util.Map)
+ */
+public final class VkApiException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    /*pkg*/ VkApiException(int code, String message) {
+        super(code + ": " + message);
+        this.code = code;
+    }
+
+    /**
+     * @return VK API error code, e. g. 6 for 'too many requests per second'
+     */
+    public int getCode() {
+        return code;
+    }
+
+}
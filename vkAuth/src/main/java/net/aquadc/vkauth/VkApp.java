@@ -1,19 +1,28 @@
 package net.aquadc.vkauth;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.SparseArray;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Collections.unmodifiableSet;
-import static java.util.EnumSet.of;
-import static net.aquadc.vkauth.Util.explodeQueryString;
 import static net.aquadc.vkauth.Util.required;
 
 /**
@@ -24,18 +33,18 @@ import static net.aquadc.vkauth.Util.required;
 public final class VkApp {
 
     private static final String VkExtraTokenData = "extra-token-data";
-    private static final String VkApiVersion = "5.62";
+    private static final String VkExtraDeliveredToken = "delivered token";
+    private static final String VkExtraDeliveredError = "delivered error";
+    /*pkg*/ static final String VkExtraOAuthHost = "oauth host";
+    /*pkg*/ static final String VkExtraCodeFlow = "code flow";
+    /*pkg*/ static final String VkExtraCodeVerifier = "code verifier";
+    /*pkg*/ static final String VkExtraRedirectUri = "redirect uri";
+    /*pkg*/ static final String VkExtraFlightId = "flight id";
+    /*pkg*/ static final String VkApiVersion = "5.62";
+    /*pkg*/ static final String DefaultOAuthHost = "https://oauth.vk.com";
 
     /*pkg*/ static final int RcVkAuth = 30_109;
 
-    private static final Intent AuthIntent =
-            new Intent("com.vkontakte.android.action.SDK_AUTH").setPackage("com.vkontakte.android");
-
-    private static final Set<AuthenticationWay> VkAppInstalled =
-            unmodifiableSet(of(AuthenticationWay.OfficialVkApp, AuthenticationWay.WebView, AuthenticationWay.Auto));
-    private static final Set<AuthenticationWay> VkAppNotInstalled =
-            unmodifiableSet(of(AuthenticationWay.WebView, AuthenticationWay.Auto));
-
     // static
 
     private static final SparseArray<VkApp> Instances = new SparseArray<>(1);
@@ -54,25 +63,35 @@ public final class VkApp {
     }
 
     /*pkg*/ static boolean isInstalled(Context context) {
-        if (context.getPackageManager().queryIntentActivities(AuthIntent, PackageManager.MATCH_DEFAULT_ONLY).isEmpty()) {
-            return false;
-        }
+        return OfficialAppDetector.isInstalled(context);
+    }
 
-        try {
-            String[] certs = Util.getCertificateFingerprints(context, AuthIntent.getPackage());
-            if (certs.length != 1 || !"48761EEF50EE53AFC4CC9C5F10E6BDE7F8F5B82F".equals(certs[0])) {
-                // todo complain about wrong VK app
-                return false;
-            }
-        } catch (PackageManager.NameNotFoundException e) {
-            throw new AssertionError(); // we've already ensured activity is resolved
-        }
+    /**
+     * Detects official VK app and Custom Tabs browsers in background, so subsequent
+     * {@link #getAvailableAuthenticationWays(Context)} calls will be cheap.
+     * Results are cached for the whole process and invalidated when VK app, or any other package which may be a browser,
+     * gets installed, updated, or removed.
+     * @param context any context, application one will be retained
+     */
+    public static void prefetchAvailableAuthenticationWays(Context context) {
+        required(context, "context");
+        OfficialAppDetector.Instance.prime(context);
+        VkCustomTabs.prime(context);
+    }
 
-        return true;
+    /**
+     * Creates and configures a WebView for OAuth dialog when main thread becomes idle,
+     * so {@link AuthenticationWay#WebView} won't pay for Chromium initialization when user taps 'login'.
+     * Pre-created WebView gets released on memory pressure.
+     * @param context any context, application one will be retained
+     */
+    public static void warmUpWebView(Context context) {
+        required(context, "context");
+        WebViewPool.warmUp(context, 1);
     }
 
     /*pkg*/ static Intent createAuthIntent(Bundle extras) {
-        Intent intent = new Intent(AuthIntent);
+        Intent intent = new Intent(OfficialAppDetector.AuthIntent);
         intent.putExtras(extras);
         return intent;
     }
@@ -81,21 +100,377 @@ public final class VkApp {
 
     private final int appId;
 
-    private final Object tokenLock = new Object();
-    private VkAccessToken currentToken;
+    private final AtomicReference<TokenIndex> tokens = new AtomicReference<>(TokenIndex.Empty);
+    private volatile int maxAccounts = 1;
+    private final AtomicReference<VkAccessToken> expiryReported = new AtomicReference<>();
+    private final CopyOnWriteArrayList<TokenListenerRegistration> tokenListeners = new CopyOnWriteArrayList<>();
+
+    private static final int StoreNotRead = 0, StoreReading = 1, StoreRead = 2;
+    private final Object storeLock = new Object();
+    private volatile VkTokenStore tokenStore;
+    private final AtomicInteger storeState = new AtomicInteger(StoreRead);
+
+    private static final long DefaultExpiryMargin = 5 * 60 * 1000;
+    private volatile long expiryMargin = DefaultExpiryMargin;
+
+    /*pkg*/ final AuthMetrics metrics = new AuthMetrics();
+    private volatile String oAuthHost = DefaultOAuthHost;
+    private volatile String codeExchangeUrl;
+    private volatile VkResourcePolicy resourcePolicy = VkResourcePolicy.AllowAll;
+    private volatile VkAssetCache assetCache;
+    private volatile boolean reuseValidToken;
+    private LoginFlight flight; // main thread only
+    private int lastFlightId; // main thread only
+    private final Preconnect preconnect = new Preconnect();
+    // weak: a future nobody waits for anymore is forgotten without being settled
+    private final Set<TokenFuture> tokenFutures = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<TokenFuture, Boolean>()));
 
     private VkApp(int appId) {
         this.appId = appId;
     }
 
+    /**
+     * Sets a persistent storage for current token.
+     * Stored token is read lazily, on first {@link #getCurrentToken()} or {@link #addTokenListener(TokenListener, Executor)} call,
+     * and delivered to {@link TokenListener#onTokenReplaced(VkAccessToken, VkAccessToken)}.
+     * Subsequent logins and logouts are written to the store.
+     * @param store a store, or {@code null} to stop persisting token
+     */
+    public void setTokenStore(@Nullable VkTokenStore store) {
+        synchronized (storeLock) {
+            tokenStore = store;
+            storeState.set(store == null ? StoreRead : StoreNotRead);
+        }
+    }
+
+    private void readStoreIfNeeded() {
+        final VkTokenStore store = tokenStore;
+        if (store == null || !storeState.compareAndSet(StoreNotRead, StoreReading)) return;
+
+        store.read(new VkTokenStore.ReadCallback() {
+            @Override public void onTokenRead(@Nullable VkAccessToken token) {
+                synchronized (storeLock) {
+                    // if token was changed or store was replaced while reading, stored token is outdated
+                    if (tokenStore != store || !storeState.compareAndSet(StoreReading, StoreRead)) return;
+                    if (token == null) return;
+                    TokenIndex index = tokens.get();
+                    if (index.active != null || index.get(token.userId) != null) return;
+                    if (!tokens.compareAndSet(index, index.putActive(token, maxAccounts))) return;
+                }
+                ExpiryScheduler.schedule(VkApp.this, token, expiryMargin);
+                dispatch(TokenEvent.Replaced, null, token);
+                completeTokenFutures(token);
+            }
+        });
+    }
+
+    private void writeStore(@Nullable VkAccessToken token) {
+        VkTokenStore store = tokenStore;
+        if (store != null) {
+            store.write(token);
+        }
+    }
+
+    /**
+     * Returns token of the current account, obtained by the last successful login or chosen by {@link #switchAccount(String)}, if any. Never blocks.
+     * If a {@link VkTokenStore} is set and was not read yet, returns {@code null} and starts reading it.
+     * Returned token may be expired, check {@link VkAccessToken#isValid()}.
+     */
+    @Nullable public VkAccessToken getCurrentToken() {
+        readStoreIfNeeded();
+        VkAccessToken token = tokens.get().active;
+        if (token != null && !token.isValid()) {
+            reportExpiry(token);
+        }
+        return token;
+    }
+
+    /**
+     * Forgets current token. Tokens of other accounts are kept.
+     */
+    public void logout() {
+        VkAccessToken old;
+        synchronized (storeLock) {
+            storeState.set(StoreRead); // don't let a pending read resurrect the token
+            TokenIndex index;
+            do {
+                index = tokens.get();
+                old = index.active;
+            } while (!tokens.compareAndSet(index, old == null ? index : index.remove(old.userId)));
+        }
+        ExpiryScheduler.schedule(this, null, expiryMargin);
+        writeStore(null);
+        if (old != null) {
+            dispatch(TokenEvent.LoggedOut, old, null);
+        }
+    }
+
+    /**
+     * Sets how many accounts' tokens are kept. When a new account logs in and there's no room,
+     * the least recently used inactive one is forgotten. Default is 1, i. e. a new account replaces the old one.
+     * Only the current account's token is written to {@link VkTokenStore}, other accounts are kept in memory
+     * and forgotten when the process dies.
+     */
+    public void setMaxAccounts(int maxAccounts) {
+        if (maxAccounts < 1) throw new IllegalArgumentException("maxAccounts must be positive, got " + maxAccounts);
+        this.maxAccounts = maxAccounts;
+        TokenIndex index;
+        do {
+            index = tokens.get();
+        } while (!tokens.compareAndSet(index, index.trimmed(maxAccounts)));
+    }
+
+    /**
+     * Returns tokens of all known accounts, the most recently used first, including the current one.
+     * Returned list is an immutable snapshot which is not copied on each call.
+     */
+    @NonNull public List<VkAccessToken> getTokens() {
+        readStoreIfNeeded();
+        return tokens.get().list;
+    }
+
+    /**
+     * @return token of the given user, if known
+     */
+    @Nullable public VkAccessToken getToken(String userId) {
+        required(userId, "userId");
+        readStoreIfNeeded();
+        return tokens.get().get(userId);
+    }
+
+    /**
+     * Makes a known account current, notifying {@link TokenListener#onTokenReplaced(VkAccessToken, VkAccessToken)}.
+     * Does nothing if it is current already.
+     * @return whether there was a token of such user
+     */
+    public boolean switchAccount(String userId) {
+        required(userId, "userId");
+        TokenIndex index, switched;
+        do {
+            index = tokens.get();
+            if (index.active != null && index.active.userId.equals(userId)) return true; // already current
+            switched = index.activate(userId, maxAccounts);
+            if (switched == index) return false;
+        } while (!tokens.compareAndSet(index, switched));
+
+        VkAccessToken token = switched.active;
+        storeState.set(StoreRead);
+        ExpiryScheduler.schedule(this, token, expiryMargin);
+        writeStore(token);
+        dispatch(TokenEvent.Replaced, index.active, token);
+        return true;
+    }
+
+    /**
+     * Forgets token of the given user. If it was the current one, acts like {@link #logout()}.
+     */
+    public void removeAccount(String userId) {
+        required(userId, "userId");
+        TokenIndex index;
+        do {
+            index = tokens.get();
+            if (index.active != null && index.active.userId.equals(userId)) {
+                logout();
+                return;
+            }
+        } while (!tokens.compareAndSet(index, index.remove(userId)));
+    }
+
+    /**
+     * Subscribes on current token changes.
+     * @param listener listener to add
+     * @param executor an executor listener will be notified on, e. g. main thread or a background one
+     */
+    public void addTokenListener(TokenListener listener, Executor executor) {
+        required(listener, "listener", executor, "executor");
+        tokenListeners.add(new TokenListenerRegistration(listener, executor));
+        readStoreIfNeeded();
+    }
+
+    /**
+     * Unsubscribes {@code listener} from current token changes.
+     */
+    public void removeTokenListener(TokenListener listener) {
+        for (TokenListenerRegistration reg : tokenListeners) {
+            if (reg.listener == listener) {
+                tokenListeners.remove(reg);
+            }
+        }
+    }
+
+    /**
+     * Sets how long before token expiry {@link TokenListener#onTokenExpiringSoon(VkAccessToken)} will be called.
+     * Default is 5 minutes.
+     */
+    public void setExpiryMargin(long marginMillis) {
+        if (marginMillis < 0) throw new IllegalArgumentException("margin must be non-negative, got " + marginMillis);
+        expiryMargin = marginMillis;
+        ExpiryScheduler.schedule(this, tokens.get().active, marginMillis);
+    }
+
+    /*pkg*/ void onTokenExpiringSoon(VkAccessToken token) {
+        if (tokens.get().active == token) {
+            dispatch(TokenEvent.ExpiringSoon, token, null);
+        }
+    }
+
+    /*pkg*/ void onTokenExpired(VkAccessToken token) {
+        if (tokens.get().active == token) {
+            reportExpiry(token);
+        }
+    }
+
+    private void reportExpiry(VkAccessToken token) {
+        VkAccessToken reported = expiryReported.get();
+        if (reported != token && expiryReported.compareAndSet(reported, token)) {
+            dispatch(TokenEvent.Expired, token, null);
+        }
+    }
+
+    private void dispatch(int event, @Nullable VkAccessToken oldToken, @Nullable VkAccessToken newToken) {
+        for (TokenListenerRegistration reg : tokenListeners) {
+            reg.executor.execute(new TokenEvent(event, reg.listener, oldToken, newToken));
+        }
+    }
+
+    /**
+     * Sets a listener for authentication stage timings.
+     * When there's no listener, no timings are measured at all.
+     * Regardless of listener presence, stages are visible in systrace/Perfetto on API 18+.
+     * @param listener a listener to set, or {@code null} to remove current one
+     */
+    public void setAuthMetricsListener(@Nullable AuthMetricsListener listener) {
+        metrics.listener = listener;
+    }
+
+    /**
+     * When enabled, {@code login} doesn't show any UI if current token is valid for at least expiry margin
+     * and already has all requested permissions: the token is delivered to {@link VkAuthCallback#onResult(VkAccessToken)}
+     * on main thread, after {@code login} has returned. Fragment callers get it through their {@code onActivityResult}, as usual.
+     * If some permissions are missing, permissions of current token are requested along with them,
+     * so VK asks only for the missing ones and the new token doesn't lose any of old ones.
+     * Disabled by default.
+     * @see #setExpiryMargin(long)
+     */
+    public void setReuseValidToken(boolean reuse) {
+        reuseValidToken = reuse;
+    }
+
+    /**
+     * Sets OAuth server used by {@link AuthenticationWay#WebView}, e. g. a local stand-in for tests.
+     * Authorization page is expected at {@code <host>/authorize}, redirect will be done to {@code <host>/blank.html}.
+     * @param host scheme, host, and optionally port, without trailing slash, {@code https://oauth.vk.com} by default
+     */
+    public void setOAuthHost(String host) {
+        required(host, "host");
+        if (host.endsWith("/")) throw new IllegalArgumentException("host must not end with a slash: " + host);
+        oAuthHost = host;
+    }
+
+    /**
+     * Sets which resources OAuth page in {@link AuthenticationWay#WebView} may load, e. g. {@link VkResourcePolicy#Lightweight}
+     * to skip analytics, fonts, and images on slow networks. Affects dialogs opened after this call.
+     * @param policy a policy, {@link VkResourcePolicy#AllowAll} by default
+     */
+    public void setResourcePolicy(VkResourcePolicy policy) {
+        required(policy, "policy");
+        resourcePolicy = policy;
+    }
+
+    /*pkg*/ VkResourcePolicy resourcePolicy() {
+        return resourcePolicy;
+    }
+
+    /**
+     * Sets a disk cache for styles, scripts, images, and fonts of OAuth page in {@link AuthenticationWay#WebView},
+     * so they aren't downloaded on every login. Used on API 21+. Affects dialogs opened after this call.
+     * A cache instance may be shared between apps.
+     * @param cache a cache, or {@code null} to rely on WebView's own HTTP cache
+     */
+    public void setAssetCache(@Nullable VkAssetCache cache) {
+        assetCache = cache;
+    }
+
+    @Nullable /*pkg*/ VkAssetCache assetCache() {
+        return assetCache;
+    }
+
+    /**
+     * Switches {@link AuthenticationWay#WebView} to authorization code flow with PKCE.
+     * WebView receives a code instead of a token, then the code and its verifier are exchanged
+     * for a token in background by POSTing {@code grant_type=authorization_code}, {@code code}, {@code code_verifier},
+     * {@code client_id}, and {@code redirect_uri} to {@code url}, e. g. to your backend which knows app's secret.
+     * Response is expected to be a JSON object with {@code access_token}, {@code expires_in}, {@code user_id},
+     * and optionally {@code email}, {@code secret}, and {@code scope}.
+     * Result is delivered to {@link VkAuthCallback} on main thread, after {@link #onActivityResult} has returned.
+     * Official VK app always returns a token, so it is not affected.
+     * @param url token exchange endpoint, or {@code null} to get back to implicit flow
+     */
+    public void setCodeExchangeUrl(@Nullable String url) {
+        codeExchangeUrl = url;
+    }
+
     /**
      * Returns a set of available authentication ways.
-     * @return returned set may contain {@link AuthenticationWay#OfficialVkApp},
+     * @return returned set may contain {@link AuthenticationWay#OfficialVkApp} and {@link AuthenticationWay#CustomTabs},
      * and will always contain {@link AuthenticationWay#WebView} and {@link AuthenticationWay#Auto}.
      */
     public Set<AuthenticationWay> getAvailableAuthenticationWays(Context context) {
-        if (AuthenticationWay.OfficialVkApp.isAvailable(context)) return VkAppInstalled;
-        else return VkAppNotInstalled;
+        EnumSet<AuthenticationWay> ways = EnumSet.of(AuthenticationWay.WebView, AuthenticationWay.Auto);
+        if (AuthenticationWay.OfficialVkApp.isAvailable(context)) ways.add(AuthenticationWay.OfficialVkApp);
+        if (AuthenticationWay.CustomTabs.isAvailable(context)) ways.add(AuthenticationWay.CustomTabs);
+        return unmodifiableSet(ways);
+    }
+
+    /**
+     * Warms up the browser for {@link AuthenticationWay#CustomTabs} and lets it preload OAuth page,
+     * so the page shows up faster when user taps 'login'. Call on main thread while login screen is visible.
+     * In code flow, page can't be preloaded because PKCE challenge is generated on launch, only the browser is warmed up.
+     * Does nothing if Custom Tabs are unavailable.
+     * @param context any context, application one will be retained
+     * @param scope   permissions which will be requested
+     */
+    public void warmUpCustomTabs(Context context, Set<VkScope> scope) {
+        required(context, "context", scope, "scope");
+        Uri likelyUrl = codeExchangeUrl != null ? null : Uri.parse(VkOAuthDialogHolder.authorizeUrl(
+                createRequestBundle(scope), VkCustomTabs.redirectUrl(appId), null
+        ));
+        VkCustomTabs.warmUp(context, likelyUrl);
+    }
+
+    /**
+     * Prepares connection to OAuth host, so OAuth page opens faster. Call on main thread when login screen becomes visible.
+     * Makes a HEAD request to the host in background, without loading any page, and,
+     * if {@link AuthenticationWay#Auto} would choose Custom Tabs, lets the browser connect to the host.
+     * Does nothing while previous preconnect is fresh, for a minute.
+     * Logins started while preconnect is fresh report {@link AuthMetricsListener.Stage#PRECONNECT}
+     * if they use the way {@link AuthenticationWay#Auto} would choose.
+     * @param context any context, application one will be retained
+     */
+    public void preconnect(Context context) {
+        required(context, "context");
+        preconnect.start(context, oAuthHost, AuthenticationWay.Auto.resolve(context));
+    }
+
+    /**
+     * Shows login UI and makes it a {@link LoginFlight} unless another one is in progress. Main thread only.
+     */
+    private void perform(AuthenticationWay way, AuthLauncher launcher, Set<VkScope> scope) {
+        Activity activity = launcher.activity();
+        AuthenticationWay resolved = way.resolve(activity);
+        metrics.flowStarted(way, activity);
+        preconnect.reportIfFresh(metrics, resolved);
+
+        Bundle request = createRequestBundle(scope);
+        int id = ++lastFlightId;
+        request.putInt(VkExtraFlightId, id);
+        way.perform(launcher, request);
+
+        // a login which did not cover requested scope is still in progress: the new one is on its own, waiters stay with the first
+        if (flight == null) {
+            // official VK app answers with its own Intent, without our extras
+            flight = new LoginFlight(resolved == AuthenticationWay.OfficialVkApp ? 0 : id, scope, activity);
+        }
     }
 
     /**
@@ -109,7 +484,8 @@ public final class VkApp {
             A caller, Set<VkScope> scope, AuthenticationWay authenticationWay, android.app.FragmentManager fragmentManager
     ) {
         required(caller, "caller", scope, "scope", authenticationWay, "authenticationWay", fragmentManager, "fragmentManager");
-        authenticationWay.perform(caller, createRequestBundle(scope), fragmentManager);
+        if (deliverWithoutUi(resultReceiver(caller), scope)) return;
+        perform(authenticationWay, new NativeLauncher(caller, fragmentManager), scope);
     }
 
     /**
@@ -123,7 +499,8 @@ public final class VkApp {
             android.app.Fragment caller, Set<VkScope> scope, AuthenticationWay authenticationWay, android.app.FragmentManager fragmentManager
     ) {
         required(caller, "caller", caller.getActivity(), "caller.getActivity()", scope, "scope", authenticationWay, "authenticationWay");
-        authenticationWay.perform(caller, createRequestBundle(scope), fragmentManager);
+        if (deliverWithoutUi(resultReceiver(caller), scope)) return;
+        perform(authenticationWay, new NativeLauncher(caller, fragmentManager), scope);
     }
 
     private Support support;
@@ -152,7 +529,8 @@ public final class VkApp {
                 A caller, Set<VkScope> scope, AuthenticationWay authenticationWay, android.support.v4.app.FragmentManager fragmentManager
         ) {
             required(caller, "caller", scope, "scope", authenticationWay, "authenticationWay", fragmentManager, "fragmentManager");
-            authenticationWay.perform(caller, createRequestBundle(scope), fragmentManager);
+            if (deliverWithoutUi(VkApp.resultReceiver(caller), scope)) return;
+            perform(authenticationWay, new SupportLauncher(caller, fragmentManager), scope);
         }
 
         /**
@@ -166,7 +544,19 @@ public final class VkApp {
                 android.support.v4.app.Fragment caller, Set<VkScope> scope, AuthenticationWay authenticationWay, android.support.v4.app.FragmentManager fragmentManager
         ) {
             required(caller, "caller", caller.getActivity(), "caller.getActivity()", scope, "scope", authenticationWay, "authenticationWay");
-            authenticationWay.perform(caller, createRequestBundle(scope), fragmentManager);
+            if (deliverWithoutUi(resultReceiver(caller), scope)) return;
+            perform(authenticationWay, new SupportLauncher(caller, fragmentManager), scope);
+        }
+
+        private VkAuthCallback resultReceiver(final android.support.v4.app.Fragment target) {
+            return new FragmentResultReceiver() {
+                @Override boolean isAdded() {
+                    return target.isAdded();
+                }
+                @Override void onActivityResult(int resultCode, Intent data) {
+                    target.onActivityResult(RcVkAuth, resultCode, data);
+                }
+            };
         }
 
     }
@@ -197,7 +587,8 @@ public final class VkApp {
                 A caller, Set<VkScope> scope, AuthenticationWay authenticationWay, androidx.fragment.app.FragmentManager fragmentManager
         ) {
             required(caller, "caller", scope, "scope", authenticationWay, "authenticationWay", fragmentManager, "fragmentManager");
-            authenticationWay.perform(caller, createRequestBundle(scope), fragmentManager);
+            if (deliverWithoutUi(VkApp.resultReceiver(caller), scope)) return;
+            perform(authenticationWay, new AndroidXLauncher(caller, fragmentManager), scope);
         }
 
         /**
@@ -211,17 +602,174 @@ public final class VkApp {
                 androidx.fragment.app.Fragment caller, Set<VkScope> scope, AuthenticationWay authenticationWay, androidx.fragment.app.FragmentManager fragmentManager
         ) {
             required(caller, "caller", caller.getActivity(), "caller.getActivity()", scope, "scope", authenticationWay, "authenticationWay");
-            authenticationWay.perform(caller, createRequestBundle(scope), fragmentManager);
+            if (deliverWithoutUi(resultReceiver(caller), scope)) return;
+            perform(authenticationWay, new AndroidXLauncher(caller, fragmentManager), scope);
+        }
+
+        private VkAuthCallback resultReceiver(final androidx.fragment.app.Fragment target) {
+            return new FragmentResultReceiver() {
+                @Override boolean isAdded() {
+                    return target.isAdded();
+                }
+                @Override void onActivityResult(int resultCode, Intent data) {
+                    target.onActivityResult(RcVkAuth, resultCode, data);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Delivers current token if it can be reused, or joins a login which is already in progress.
+     * Main thread only.
+     * @param callback receives the result
+     * @return {@code true} if the caller will get its result without showing anything
+     */
+    private boolean deliverWithoutUi(final VkAuthCallback callback, Set<VkScope> scope) {
+        if (reuseValidToken) {
+            final VkAccessToken token = getCurrentToken();
+            if (covers(token, scope)) {
+                Util.MainThread.Handler.post(new Runnable() {
+                    @Override public void run() {
+                        callback.onResult(token);
+                    }
+                });
+                return true;
+            }
+        }
+
+        LoginFlight f = flight;
+        if (f != null) {
+            if (f.isAlive()) {
+                if (f.covers(scope)) {
+                    f.join(callback);
+                    return true;
+                }
+            } else {
+                flight = null;
+                f.abandon(this);
+            }
         }
+        return false;
+    }
+
+    private boolean covers(@Nullable VkAccessToken token, Set<VkScope> scope) {
+        return token != null && token.isValid(expiryMargin) && token.getScope().containsAll(scope);
+    }
+
+    /**
+     * @return a callback which passes result to Activity's callback, unless the Activity has gone while result was on its way
+     */
+    private static <A extends Activity & VkAuthCallbackProvider> VkAuthCallback resultReceiver(final A caller) {
+        final VkAuthCallback callback = caller.getVkAuthCallback();
+        return new VkAuthCallback() {
+            @Override public void onResult(VkAccessToken token) {
+                if (isAlive(caller)) callback.onResult(token);
+            }
+            @Override public void onError() {
+                if (isAlive(caller)) callback.onError();
+            }
+        };
+    }
+
+    private static boolean isAlive(Activity activity) {
+        return !activity.isFinishing() && (Build.VERSION.SDK_INT < 17 || !Api17.isDestroyed(activity));
+    }
+
+    @TargetApi(17)
+    private static final class Api17 {
+        /*pkg*/ static boolean isDestroyed(Activity activity) {
+            return activity.isDestroyed();
+        }
+    }
+
+    /**
+     * @return a callback which passes result to fragment's {@code onActivityResult}, like a real login does
+     */
+    private static VkAuthCallback resultReceiver(final android.app.Fragment target) {
+        return new FragmentResultReceiver() {
+            @Override boolean isAdded() {
+                return target.isAdded();
+            }
+            @Override void onActivityResult(int resultCode, Intent data) {
+                target.onActivityResult(RcVkAuth, resultCode, data);
+            }
+        };
+    }
+
+    /**
+     * Passes result to fragment's {@code onActivityResult}, unless the fragment was removed while result was on its way.
+     */
+    private static abstract class FragmentResultReceiver implements VkAuthCallback {
+        /*pkg*/ abstract boolean isAdded();
+        /*pkg*/ abstract void onActivityResult(int resultCode, Intent data);
+        @Override public final void onResult(VkAccessToken token) {
+            if (isAdded()) onActivityResult(Activity.RESULT_OK, new Intent().putExtra(VkExtraDeliveredToken, token));
+        }
+        @Override public final void onError() {
+            if (isAdded()) onActivityResult(Activity.RESULT_CANCELED, new Intent().putExtra(VkExtraDeliveredError, true));
+        }
+    }
+
+    /**
+     * Returns a token which is valid for at least expiry margin and has all permissions from {@code scope}.
+     * If current token is fine, the future is already completed, otherwise it will be completed by a successful login
+     * which obtains such token, or failed with {@link java.util.concurrent.ExecutionException} by a failed or cancelled one.
+     * A future which is not referenced anymore is forgotten, there's no need to cancel it.
+     * Logging in is up to UI, this method doesn't start it. Intended for background threads,
+     * waiting on main thread would block the login itself.
+     * @param scope permissions the token must have
+     */
+    public Future<VkAccessToken> awaitToken(Set<VkScope> scope) {
+        required(scope, "scope");
+        TokenFuture future = new TokenFuture(tokenFutures, VkScopeSet.copyOf(scope));
+        tokenFutures.add(future); // before checking current token, not to miss a concurrent login
+        VkAccessToken token = getCurrentToken();
+        if (covers(token, scope)) future.complete(token);
+        return future;
+    }
+
+    private void completeTokenFutures(VkAccessToken token) {
+        for (TokenFuture future : tokenFutures()) {
+            if (covers(token, future.scope)) future.complete(token);
+        }
+    }
+
+    /**
+     * Fails those awaiting a token which a failed login would have given them.
+     * Others keep waiting for a login with broader scope.
+     */
+    /*pkg*/ void failTokenFutures(VkScopeSet scope) {
+        for (TokenFuture future : tokenFutures()) {
+            if (scope.containsAll(future.scope)) future.fail();
+        }
+    }
 
+    /**
+     * @return a snapshot of pending futures: settling one removes it from the registry
+     */
+    private TokenFuture[] tokenFutures() {
+        synchronized (tokenFutures) {
+            return tokenFutures.toArray(new TokenFuture[tokenFutures.size()]);
+        }
     }
 
     private Bundle createRequestBundle(Set<VkScope> scope) {
-        Bundle extras = new Bundle(5);
+        VkScopeSet requested = VkScopeSet.copyOf(scope);
+        if (reuseValidToken) {
+            // a token has only permissions requested along with it, so keep the ones we already have;
+            // VK shows only those which were not granted yet
+            VkAccessToken token = tokens.get().active;
+            if (token != null && token.isValid()) requested = requested.union(token.getScope());
+        }
+
+        Bundle extras = new Bundle(7);
         extras.putString("version", VkApiVersion);
         extras.putInt("client_id", appId);
         extras.putBoolean("revoke", true); // don't know why, just like in original SDK
-        extras.putString("scope", VkScope.joined(scope));
+        extras.putString("scope", requested.joined());
+        extras.putString(VkExtraOAuthHost, oAuthHost);
+        if (codeExchangeUrl != null) extras.putBoolean(VkExtraCodeFlow, true);
         return extras;
     }
 
@@ -230,45 +778,182 @@ public final class VkApp {
 
         if (requestCode != RcVkAuth) return false;
 
+        if (data != null) {
+            VkAccessToken delivered = data.getParcelableExtra(VkExtraDeliveredToken);
+            if (delivered != null) {
+                callback.onResult(delivered);
+                return true;
+            } else if (data.hasExtra(VkExtraDeliveredError)) {
+                callback.onError();
+                return true;
+            }
+        }
+
+        LoginFlight f = flight;
+        if (f != null && f.id == (data == null ? 0 : data.getIntExtra(VkExtraFlightId, 0))) {
+            flight = null;
+            callback = f.settling(callback, this);
+        }
+
+        Bundle extras = data == null ? null : data.getExtras();
+        boolean fromWebView = extras != null && extras.containsKey(VkExtraTokenData);
+        AuthenticationWay way = metrics.flowWay(fromWebView ? AuthenticationWay.WebView : AuthenticationWay.OfficialVkApp);
+        if (way == AuthenticationWay.OfficialVkApp) {
+            metrics.stage(way, AuthMetricsListener.Stage.APP_ROUND_TRIP, metrics.flowStart());
+        } else if (way == AuthenticationWay.CustomTabs) {
+            metrics.stage(way, AuthMetricsListener.Stage.BROWSER_ROUND_TRIP, metrics.flowStart());
+        }
+
         if (resultCode != Activity.RESULT_OK) {
+            metrics.finished(way, AuthMetricsListener.Outcome.CANCELLED);
             callback.onError();
             return true;
         }
 
-        if (data == null) {
+        if (extras == null) {
+            metrics.finished(way, AuthMetricsListener.Outcome.ERROR);
             callback.onError();
             return true;
         }
 
-        Bundle extras = data.getExtras();
-        Map<String, String> tokenParams = new HashMap<>();
-        if (extras.containsKey(VkExtraTokenData)) {
-            // answer from WebView
-            String tokenInfo = extras.getString(VkExtraTokenData);
-            tokenParams = explodeQueryString(tokenInfo);
-        } else {
-            // answer from VK app
-            for (String key : extras.keySet()) {
-                tokenParams.put(key, String.valueOf(extras.get(key)));
-            }
+        String verifier = fromWebView ? extras.getString(VkExtraCodeVerifier) : null;
+        if (verifier != null) {
+            exchangeCode(way, extras, verifier, callback);
+            return true;
         }
 
-        VkAccessToken newToken = VkAccessToken.create(tokenParams);
+        long parseStart = metrics.start();
+        AuthMetrics.traceBegin("VkAuth token parsing");
+        VkAccessToken newToken = parseToken(extras, fromWebView);
+        AuthMetrics.traceEnd();
+        metrics.stage(way, AuthMetricsListener.Stage.TOKEN_PARSING, parseStart);
+
         if (newToken == null) {
+            metrics.finished(way, AuthMetricsListener.Outcome.ERROR);
             callback.onError();
             return false;
         }
 
-        synchronized (tokenLock) {
-            if (currentToken == null) {
-                currentToken = newToken;
-            } else {
-                currentToken = newToken = currentToken.overriddenBy(newToken);
+        accept(way, newToken, callback);
+        return true;
+    }
+
+    private void exchangeCode(final AuthenticationWay way, Bundle extras, String verifier, final VkAuthCallback callback) {
+        String url = codeExchangeUrl;
+        String code = CodeExchange.findCode(extras.getString(VkExtraTokenData));
+        if (url == null || code == null) {
+            metrics.finished(way, AuthMetricsListener.Outcome.ERROR);
+            callback.onError();
+            return;
+        }
+
+        final long start = metrics.start();
+        CodeExchange.exchange(url, appId, code, verifier, extras.getString(VkExtraRedirectUri), new CodeExchange.Callback() {
+            @Override public void onExchanged(@Nullable VkAccessToken token) {
+                metrics.stage(way, AuthMetricsListener.Stage.TOKEN_EXCHANGE, start);
+                if (token == null) {
+                    metrics.finished(way, AuthMetricsListener.Outcome.ERROR);
+                    callback.onError();
+                } else {
+                    accept(way, token, callback);
+                }
             }
+        });
+    }
+
+    private void accept(AuthenticationWay way, VkAccessToken newToken, VkAuthCallback callback) {
+        TokenIndex index;
+        VkAccessToken merged;
+        do {
+            index = tokens.get();
+            VkAccessToken sameUser = index.get(newToken.userId);
+            merged = sameUser == null ? newToken : sameUser.overriddenBy(newToken);
+        } while (!tokens.compareAndSet(index, index.putActive(merged, maxAccounts)));
+        storeState.set(StoreRead);
+        ExpiryScheduler.schedule(this, merged, expiryMargin);
+        writeStore(merged);
+        dispatch(TokenEvent.Replaced, index.active, merged);
+        completeTokenFutures(merged);
+        metrics.finished(way, AuthMetricsListener.Outcome.SUCCESS);
+
+        callback.onResult(merged);
+    }
+
+    @Nullable private static VkAccessToken parseToken(Bundle extras, boolean fromWebView) {
+        if (fromWebView) {
+            return VkAccessToken.create(extras.getString(VkExtraTokenData));
+        } else {
+            // answer from VK app
+            VkAccessToken.Fields fields = new VkAccessToken.Fields();
+            for (String key : extras.keySet()) {
+                fields.put(key, String.valueOf(extras.get(key)));
+            }
+            return fields.create();
         }
+    }
 
-        callback.onResult(newToken);
-        return true;
+    /**
+     * Listens for current token changes.
+     * @see #addTokenListener(TokenListener, Executor)
+     */
+    public interface TokenListener {
+        /**
+         * Called when a new token was obtained.
+         * @param oldToken previous token, if any
+         * @param newToken new token, possibly merged with the old one
+         */
+        void onTokenReplaced(@Nullable VkAccessToken oldToken, @NonNull VkAccessToken newToken);
+
+        /**
+         * Called once when current token is about to expire.
+         * @see #setExpiryMargin(long)
+         */
+        void onTokenExpiringSoon(@NonNull VkAccessToken token);
+
+        /**
+         * Called once when current token expires.
+         */
+        void onTokenExpired(@NonNull VkAccessToken token);
+
+        /**
+         * Called when the token was forgotten by {@link #logout()}.
+         */
+        void onLoggedOut(@NonNull VkAccessToken oldToken);
+    }
+
+    private static final class TokenListenerRegistration {
+        /*pkg*/ final TokenListener listener;
+        /*pkg*/ final Executor executor;
+        /*pkg*/ TokenListenerRegistration(TokenListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private static final class TokenEvent implements Runnable {
+        /*pkg*/ static final int Replaced = 0, ExpiringSoon = 1, Expired = 2, LoggedOut = 3;
+
+        private final int event;
+        private final TokenListener listener;
+        private final VkAccessToken oldToken;
+        private final VkAccessToken newToken;
+
+        /*pkg*/ TokenEvent(int event, TokenListener listener, VkAccessToken oldToken, VkAccessToken newToken) {
+            this.event = event;
+            this.listener = listener;
+            this.oldToken = oldToken;
+            this.newToken = newToken;
+        }
+
+        @Override public void run() {
+            switch (event) {
+                case Replaced: listener.onTokenReplaced(oldToken, newToken); break;
+                case ExpiringSoon: listener.onTokenExpiringSoon(oldToken); break;
+                case Expired: listener.onTokenExpired(oldToken); break;
+                case LoggedOut: listener.onLoggedOut(oldToken); break;
+                default: throw new AssertionError();
+            }
+        }
     }
 
     public interface VkAuthCallbackProvider {
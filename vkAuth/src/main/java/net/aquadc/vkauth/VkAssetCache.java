@@ -0,0 +1,525 @@
+package net.aquadc.vkauth;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.webkit.WebResourceResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.aquadc.vkauth.Util.required;
+
+/**
+ * Size-bounded LRU disk cache of static OAuth page assets: styles, scripts, images, and fonts.
+ * Stale entries are revalidated with {@code If-None-Match}/{@code If-Modified-Since},
+ * and served stale if revalidation fails, which is better than nothing on a flaky network.
+ * HTML, non-HTTPS, {@code no-store}/{@code private}, cookie-setting, and credential-bearing responses are never cached.
+ * Works on API 21+, does nothing on older versions.
+ * @see VkApp#setAssetCache(VkAssetCache)
+ */
+public final class VkAssetCache {
+
+    private static final int Version = 1;
+    private static final int MaxEntryBytes = 1024 * 1024;
+    private static final int Timeout = 15_000;
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    private static final String[] CacheableExtensions = {
+            ".css", ".js", ".png", ".jpg", ".jpeg", ".gif", ".webp", ".svg", ".ico", ".woff", ".woff2", ".ttf", ".otf"
+    };
+    private static final String[] CredentialParams = {
+            "access_token", "token", "code", "sid", "hash", "key", "password", "pass", "email", "session"
+    };
+
+    private final Context context;
+    private File dir;
+    private final long maxBytes;
+
+    private final Object lock = new Object();
+    private LinkedHashMap<String, Long> index; // key -> size, access-ordered, loaded lazily
+    private long totalBytes;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger revalidations = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Creates a cache in a subdirectory of application's cache directory.
+     * Directory is resolved on first use, in background.
+     * @param maxBytes maximum size of cached assets
+     */
+    public VkAssetCache(Context context, long maxBytes) {
+        required(context, "context");
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive, got " + maxBytes);
+        this.context = context.getApplicationContext();
+        this.dir = null;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a cache in the given directory, which must be used by this cache only.
+     * @param maxBytes maximum size of cached assets
+     */
+    public VkAssetCache(File dir, long maxBytes) {
+        required(dir, "dir");
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive, got " + maxBytes);
+        this.context = null;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return number of requests served from cache without touching network
+     */
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests served from cache after the server has confirmed it's not modified
+     */
+    public int getRevalidatedCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return number of cacheable requests which were loaded from network
+     */
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return whether a sub-resource with such URL may be cached
+     */
+    /*pkg*/ static boolean isCacheable(Uri url) {
+        if (!"https".equals(url.getScheme())) return false;
+        String path = url.getPath();
+        if (path == null || path.startsWith("/captcha.php")) return false;
+
+        boolean staticAsset = false;
+        for (String ext : CacheableExtensions) {
+            if (path.regionMatches(true, path.length() - ext.length(), ext, 0, ext.length())) {
+                staticAsset = true;
+                break;
+            }
+        }
+        if (!staticAsset) return false;
+
+        if (url.getEncodedQuery() != null) {
+            for (String param : CredentialParams) {
+                if (url.getQueryParameter(param) != null) return false;
+            }
+        }
+        return url.getEncodedUserInfo() == null && url.getEncodedFragment() == null;
+    }
+
+    /**
+     * Serves a static sub-resource from cache or network, or returns {@code null} to let WebView load it.
+     * Responses which can't be cached are passed through, not fetched twice.
+     * Blocks, call on a background thread.
+     */
+    @Nullable @TargetApi(21)
+    /*pkg*/ WebResourceResponse get(Uri url, Map<String, String> requestHeaders) {
+        if (!isCacheable(url)) return null;
+
+        String key = key(url.toString());
+        Entry cached = read(key);
+        if (cached != null && !cached.url.equals(url.toString())) cached = null; // hash collision
+        if (cached != null && cached.isFresh()) {
+            hits.incrementAndGet();
+            return cached.toResponse();
+        }
+
+        HttpURLConnection connection;
+        try {
+            connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+            connection.setConnectTimeout(Timeout);
+            connection.setReadTimeout(Timeout);
+            connection.setUseCaches(false);
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (cached != null) {
+                if (cached.etag != null) connection.setRequestProperty("If-None-Match", cached.etag);
+                if (cached.lastModified != null) connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                drain(connection.getInputStream());
+                Entry renewed = cached.renewed(expiresAt(connection));
+                write(key, renewed);
+                revalidations.incrementAndGet();
+                return renewed.toResponse();
+            }
+
+            misses.incrementAndGet();
+            if (status / 100 == 3 || status < 100 || status > 599) {
+                connection.disconnect();
+                return null; // WebResourceResponse can't carry a redirect, let WebView follow it itself
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                InputStream error = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                return passThrough(connection, status, error == null ? new ByteArrayInputStream(new byte[0]) : error);
+            }
+
+            InputStream input = connection.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 1024));
+            if (!readAtMost(input, bytes, MaxEntryBytes)) {
+                if (cached != null) remove(key);
+                // too big to cache, but already being downloaded: serve what's read so far followed by the rest
+                return passThrough(connection, status,
+                        new SequenceInputStream(new ByteArrayInputStream(bytes.toByteArray()), input));
+            }
+
+            byte[] body = bytes.toByteArray();
+            String contentType = connection.getContentType();
+            Entry fresh = new Entry(
+                    url.toString(), mime(contentType), charset(contentType),
+                    connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"),
+                    connection.getHeaderField("Access-Control-Allow-Origin"), expiresAt(connection), body
+            );
+            if (isStorable(connection, fresh)) {
+                write(key, fresh);
+            } else if (cached != null) {
+                remove(key);
+            }
+            return fresh.toResponse();
+        } catch (IOException e) {
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.toResponse(); // stale is better than nothing
+            }
+            return null;
+        }
+        // connection is not disconnected: streams are read to the end, so it goes back to keep-alive pool
+    }
+
+    private static boolean isStorable(HttpURLConnection connection, Entry entry) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            cacheControl = cacheControl.toLowerCase(Locale.US);
+            if (cacheControl.contains("no-store") || cacheControl.contains("private")) return false;
+        }
+        if (connection.getHeaderField("Set-Cookie") != null) return false;
+        return entry.mime == null || !entry.mime.startsWith("text/html");
+    }
+
+    private static long expiresAt(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            cacheControl = cacheControl.toLowerCase(Locale.US);
+            if (cacheControl.contains("no-cache")) return 0;
+            int maxAge = cacheControl.indexOf("max-age=");
+            if (maxAge >= 0) {
+                int start = maxAge + "max-age=".length(), end = start;
+                while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) end++;
+                try {
+                    return System.currentTimeMillis() + 1000L * Long.parseLong(cacheControl.substring(start, end));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return connection.getExpiration(); // 0 if absent, then entry must be revalidated every time
+    }
+
+    /**
+     * Reads {@code input} to the end and closes it, unless there are more than {@code limit} bytes.
+     * @return whether the whole stream was read
+     */
+    private static boolean readAtMost(InputStream input, ByteArrayOutputStream bytes, int limit) throws IOException {
+        byte[] buf = new byte[8192];
+        int read;
+        try {
+            while ((read = input.read(buf)) >= 0) {
+                bytes.write(buf, 0, read);
+                if (bytes.size() > limit) return false;
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        input.close();
+        return true;
+    }
+
+    /**
+     * Hands a response which won't be cached over to WebView as is, so it doesn't request it once again.
+     */
+    @TargetApi(21)
+    private static WebResourceResponse passThrough(HttpURLConnection connection, int status, InputStream body) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null) { // status line
+                headers.put(header.getKey(), TextUtils.join(", ", header.getValue()));
+            }
+        }
+        String contentType = connection.getContentType();
+        String reason = connection.getResponseMessage();
+        return new WebResourceResponse(
+                mime(contentType), charset(contentType), status,
+                reason == null || reason.isEmpty() ? "Unknown" : reason, // must not be empty, HTTP/2 has none
+                headers, body
+        );
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        try {
+            byte[] buf = new byte[512];
+            while (input.read(buf) >= 0);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Nullable private static String mime(@Nullable String contentType) {
+        if (contentType == null) return null;
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+    }
+
+    @Nullable private static String charset(@Nullable String contentType) {
+        if (contentType == null) return null;
+        int charset = contentType.toLowerCase(Locale.US).indexOf("charset=");
+        if (charset < 0) return null;
+        int end = contentType.indexOf(';', charset);
+        return contentType.substring(charset + "charset=".length(), end < 0 ? contentType.length() : end).trim();
+    }
+
+    // storage
+
+    private static String key(String url) {
+        try {
+            return Util.toHex(MessageDigest.getInstance("SHA-1").digest(url.getBytes(Utf8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-1 is not available");
+        }
+    }
+
+    private File dir() {
+        File d = dir;
+        if (d == null) {
+            d = dir = new File(context.getCacheDir(), "vk-assets");
+        }
+        return d;
+    }
+
+    private void loadIndexIfNeeded() {
+        if (index != null) return;
+        index = new LinkedHashMap<>(16, .75f, true);
+        totalBytes = 0;
+        File[] files = dir().listFiles();
+        if (files == null) return;
+        // oldest first, so the most recently used ones are evicted last
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : modified[a] == modified[b] ? 0 : 1;
+            }
+        });
+        for (Integer i : order) {
+            File f = files[i];
+            if (f.getName().endsWith(".tmp")) {
+                f.delete(); // left by a previous process, current one hasn't written anything yet
+            } else {
+                index.put(f.getName(), f.length());
+                totalBytes += f.length();
+            }
+        }
+    }
+
+    @Nullable private Entry read(String key) {
+        File file;
+        synchronized (lock) {
+            loadIndexIfNeeded();
+            if (index.get(key) == null) return null;
+            file = new File(dir(), key);
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                Entry entry = Entry.readFrom(input);
+                file.setLastModified(System.currentTimeMillis()); // keep LRU order across launches
+                return entry;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    private void write(String key, Entry entry) {
+        synchronized (lock) {
+            loadIndexIfNeeded(); // before creating a temp file, or the scan will take it for garbage
+        }
+        File dir = dir();
+        File tmp = new File(dir, key + '.' + Thread.currentThread().getId() + ".tmp");
+        File file = new File(dir, key);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) return;
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                entry.writeTo(output);
+            } finally {
+                output.close();
+            }
+            synchronized (lock) {
+                if (!tmp.renameTo(file)) throw new IOException("can't rename " + tmp + " to " + file);
+                Long old = index.put(key, file.length());
+                totalBytes += file.length() - (old == null ? 0 : old);
+                trimToSize();
+            }
+        } catch (IOException e) {
+            tmp.delete(); // not cached this time, no big deal
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (lock) {
+            loadIndexIfNeeded();
+            Long size = index.remove(key);
+            if (size != null) totalBytes -= size;
+            new File(dir(), key).delete();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> e = eldest.next();
+            new File(dir(), e.getKey()).delete();
+            totalBytes -= e.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes all cached assets.
+     */
+    public void clear() {
+        synchronized (lock) {
+            loadIndexIfNeeded();
+            for (String key : index.keySet()) {
+                new File(dir(), key).delete();
+            }
+            index.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private static final class Entry {
+        /*pkg*/ final String url;
+        @Nullable /*pkg*/ final String mime;
+        @Nullable private final String encoding;
+        @Nullable /*pkg*/ final String etag;
+        @Nullable /*pkg*/ final String lastModified;
+        @Nullable private final String allowOrigin;
+        private final long expiresAt;
+        private final byte[] body;
+
+        /*pkg*/ Entry(String url, @Nullable String mime, @Nullable String encoding, @Nullable String etag,
+                      @Nullable String lastModified, @Nullable String allowOrigin, long expiresAt, byte[] body) {
+            this.url = url;
+            this.mime = mime;
+            this.encoding = encoding;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.allowOrigin = allowOrigin;
+            this.expiresAt = expiresAt;
+            this.body = body;
+        }
+
+        /*pkg*/ boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /*pkg*/ Entry renewed(long expiresAt) {
+            return new Entry(url, mime, encoding, etag, lastModified, allowOrigin, expiresAt, body);
+        }
+
+        @TargetApi(21)
+        /*pkg*/ WebResourceResponse toResponse() {
+            Map<String, String> headers = allowOrigin == null
+                    ? Collections.<String, String>emptyMap()
+                    : Collections.singletonMap("Access-Control-Allow-Origin", allowOrigin);
+            return new WebResourceResponse(
+                    mime == null ? "application/octet-stream" : mime, encoding, 200, "OK", headers, new ByteArrayInputStream(body)
+            );
+        }
+
+        /*pkg*/ void writeTo(DataOutputStream output) throws IOException {
+            output.writeByte(Version);
+            output.writeUTF(url);
+            writeNullable(output, mime);
+            writeNullable(output, encoding);
+            writeNullable(output, etag);
+            writeNullable(output, lastModified);
+            writeNullable(output, allowOrigin);
+            output.writeLong(expiresAt);
+            output.writeInt(body.length);
+            output.write(body);
+        }
+
+        /*pkg*/ static Entry readFrom(DataInputStream input) throws IOException {
+            if (input.readByte() != Version) throw new IOException("unsupported cache entry version");
+            String url = input.readUTF();
+            String mime = readNullable(input);
+            String encoding = readNullable(input);
+            String etag = readNullable(input);
+            String lastModified = readNullable(input);
+            String allowOrigin = readNullable(input);
+            long expiresAt = input.readLong();
+            int length = input.readInt();
+            if (length < 0 || length > MaxEntryBytes) throw new IOException("malformed cache entry");
+            byte[] body = new byte[length];
+            input.readFully(body);
+            return new Entry(url, mime, encoding, etag, lastModified, allowOrigin, expiresAt, body);
+        }
+
+        private static void writeNullable(DataOutputStream output, @Nullable String value) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) output.writeUTF(value);
+        }
+
+        @Nullable private static String readNullable(DataInputStream input) throws IOException {
+            return input.readBoolean() ? input.readUTF() : null;
+        }
+    }
+
+}
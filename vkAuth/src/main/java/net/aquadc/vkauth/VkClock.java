@@ -0,0 +1,47 @@
+package net.aquadc.vkauth;
+
+import android.os.SystemClock;
+
+import static net.aquadc.vkauth.Util.required;
+
+/**
+ * Source of time for token expiry checks.
+ * Expiry is tracked against a monotonic clock, so changing device time won't make a token (in)valid.
+ */
+public abstract class VkClock {
+
+    /**
+     * @return monotonic time in milliseconds, like {@link SystemClock#elapsedRealtime()}
+     */
+    public abstract long elapsedRealtime();
+
+    /**
+     * @return wall-clock time in milliseconds, like {@link System#currentTimeMillis()}
+     */
+    public abstract long currentTimeMillis();
+
+    public static final VkClock SYSTEM = new VkClock() {
+        @Override public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+        @Override public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static volatile VkClock clock = SYSTEM;
+
+    /**
+     * Replaces the clock used by the whole library, useful for tests.
+     * Tokens created before this call keep deadlines computed by the previous clock.
+     */
+    public static void setDefault(VkClock clock) {
+        required(clock, "clock");
+        VkClock.clock = clock;
+    }
+
+    /*pkg*/ static VkClock get() {
+        return clock;
+    }
+
+}
@@ -0,0 +1,155 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import androidx.browser.customtabs.CustomTabsClient;
+import androidx.browser.customtabs.CustomTabsIntent;
+import androidx.browser.customtabs.CustomTabsServiceConnection;
+import androidx.browser.customtabs.CustomTabsSession;
+
+/**
+ * Glue for {@link AuthenticationWay#CustomTabs}.
+ * androidx.browser is an optional dependency, so everything touching it lives in {@link Impl}
+ * which is loaded only after checking the library is present.
+ */
+/*pkg*/ final class VkCustomTabs {
+    private VkCustomTabs() {}
+
+    private static final int Unknown = 0, Present = 1, Absent = 2;
+    private static volatile int libraryState = Unknown;
+
+    /**
+     * @return redirect URL which must be caught by {@link VkCustomTabsRedirectActivity}
+     */
+    /*pkg*/ static String redirectUrl(int appId) {
+        return "vk" + appId + "://vk.com/blank.html";
+    }
+
+    /**
+     * @return whether androidx.browser is on classpath, there's a browser supporting Custom Tabs,
+     *         and {@link VkCustomTabsRedirectActivity} is declared in app's manifest
+     */
+    /*pkg*/ static boolean isAvailable(Context context) {
+        return hasLibrary() && Availability.Instance.get(context);
+    }
+
+    /**
+     * Checks availability in background, so subsequent {@link #isAvailable(Context)} calls will be cheap.
+     */
+    /*pkg*/ static void prime(Context context) {
+        if (hasLibrary()) Availability.Instance.prime(context);
+    }
+
+    private static boolean hasLibrary() {
+        int state = libraryState;
+        if (state == Unknown) {
+            try {
+                Class.forName("androidx.browser.customtabs.CustomTabsIntent");
+                state = Present;
+            } catch (ClassNotFoundException e) {
+                state = Absent;
+            }
+            libraryState = state;
+        }
+        return state == Present;
+    }
+
+    /**
+     * Binds to the browser, warms it up, and hints it that {@code likelyUrl} will be opened.
+     * Does nothing if Custom Tabs are unavailable.
+     */
+    /*pkg*/ static void warmUp(Context context, @Nullable Uri likelyUrl) {
+        if (hasLibrary()) {
+            Impl.warmUp(context.getApplicationContext(), likelyUrl);
+        }
+    }
+
+    /**
+     * Like {@link #warmUp(Context, Uri)}, but keeps the URL passed there, if any, it is more useful for the browser.
+     */
+    /*pkg*/ static void preconnect(Context context, Uri url) {
+        if (hasLibrary()) {
+            Impl.warmUp(context.getApplicationContext(), Impl.likelyUrl != null ? Impl.likelyUrl : url);
+        }
+    }
+
+    /*pkg*/ static void launch(Activity activity, Uri url) {
+        Impl.launch(activity, url);
+    }
+
+    /**
+     * Process-wide cache of {@link #isAvailable(Context)}.
+     * Dropped when any package gets installed, replaced, or removed, since it may be a browser.
+     */
+    private static final class Availability extends PackageCache<Boolean> {
+
+        /*pkg*/ static final Availability Instance = new Availability();
+
+        private Availability() {
+            super(null);
+        }
+
+        @Override /*pkg*/ Boolean query(Context context) {
+            try {
+                context.getPackageManager().getActivityInfo(new ComponentName(context, VkCustomTabsRedirectActivity.class), 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                return false;
+            }
+            return Impl.browserPackage(context) != null;
+        }
+    }
+
+    private static final class Impl {
+
+        private static CustomTabsSession session; // main thread only
+        /*pkg*/ static Uri likelyUrl;
+        private static boolean binding;
+
+        @Nullable /*pkg*/ static String browserPackage(Context context) {
+            return CustomTabsClient.getPackageName(context, null);
+        }
+
+        /*pkg*/ static void warmUp(final Context context, @Nullable final Uri url) {
+            likelyUrl = url;
+            CustomTabsSession s = session;
+            if (s != null) {
+                if (url != null) s.mayLaunchUrl(url, null, null);
+                return;
+            }
+            if (binding) return; // url will be used when connected
+
+            String browser = browserPackage(context);
+            if (browser == null) return;
+            binding = CustomTabsClient.bindCustomTabsService(context, browser, new CustomTabsServiceConnection() {
+                @Override public void onCustomTabsServiceConnected(ComponentName name, CustomTabsClient client) {
+                    binding = false;
+                    client.warmup(0);
+                    CustomTabsSession s = session = client.newSession(null);
+                    if (s != null && likelyUrl != null) s.mayLaunchUrl(likelyUrl, null, null);
+                }
+                @Override public void onServiceDisconnected(ComponentName name) {
+                    binding = false;
+                    session = null;
+                }
+            });
+        }
+
+        /*pkg*/ static void launch(Activity activity, Uri url) {
+            CustomTabsSession s = session;
+            CustomTabsIntent tab = (s == null ? new CustomTabsIntent.Builder() : new CustomTabsIntent.Builder(s))
+                    .setShowTitle(true)
+                    .build();
+            String browser = browserPackage(activity);
+            if (browser != null) tab.intent.setPackage(browser);
+            tab.launchUrl(activity, url);
+            likelyUrl = null;
+        }
+
+    }
+
+}
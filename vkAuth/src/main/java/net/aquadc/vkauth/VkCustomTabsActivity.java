@@ -0,0 +1,71 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Invisible activity which opens OAuth page in a Custom Tab and returns auth result,
+ * like official VK app does. Redirect is delivered here by {@link VkCustomTabsRedirectActivity}.
+ * If user closes the tab, auth is cancelled.
+ */
+public final class VkCustomTabsActivity extends Activity {
+
+    private boolean launched;
+    private String codeVerifier; // null in implicit flow
+
+    @Override protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if (savedInstanceState != null) {
+            launched = savedInstanceState.getBoolean("launched");
+            codeVerifier = savedInstanceState.getString("code verifier");
+        } else if (getIntent().getBooleanExtra(VkApp.VkExtraCodeFlow, false)) {
+            codeVerifier = CodeExchange.newVerifier();
+        }
+    }
+
+    @Override protected void onResume() {
+        super.onResume();
+        if (isFinishing()) return; // got redirect in onNewIntent
+
+        if (!launched) {
+            launched = true;
+            Bundle extras = getIntent().getExtras();
+            String url = VkOAuthDialogHolder.authorizeUrl(extras, redirectUrl(), codeVerifier);
+            VkCustomTabs.launch(this, Uri.parse(url));
+        } else {
+            // back from the tab without redirect
+            setResult(RESULT_CANCELED, tagged(new Intent()));
+            finish();
+        }
+    }
+
+    @Override protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        Uri uri = intent.getData();
+        if (uri == null) return;
+
+        Intent data = VkOAuthDialogHolder.redirectResult(uri.toString(), redirectUrl(), codeVerifier);
+        setResult(VkOAuthDialogHolder.isError(data) ? RESULT_CANCELED : RESULT_OK, tagged(data));
+        finish();
+    }
+
+    @Override protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean("launched", launched);
+        outState.putString("code verifier", codeVerifier);
+    }
+
+    /**
+     * Marks result with the id of login it belongs to.
+     */
+    private Intent tagged(Intent data) {
+        return data.putExtra(VkApp.VkExtraFlightId, getIntent().getIntExtra(VkApp.VkExtraFlightId, 0));
+    }
+
+    private String redirectUrl() {
+        return VkCustomTabs.redirectUrl(getIntent().getIntExtra("client_id", 0));
+    }
+
+}
@@ -0,0 +1,22 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Catches OAuth redirect from a Custom Tab and hands it to {@link VkCustomTabsActivity},
+ * closing the tab on the way. Must be declared in app's manifest
+ * with an intent filter for {@code vk<appId>://vk.com/blank.html}, see README.
+ */
+public final class VkCustomTabsRedirectActivity extends Activity {
+
+    @Override protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        startActivity(new Intent(this, VkCustomTabsActivity.class)
+                .setData(getIntent().getData())
+                .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP));
+        finish();
+    }
+
+}
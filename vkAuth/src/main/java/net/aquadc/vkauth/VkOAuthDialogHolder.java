@@ -1,34 +1,39 @@
 package net.aquadc.vkauth;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.MutableContextWrapper;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.JavascriptInterface;
-import android.webkit.WebSettings;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.FrameLayout;
 import android.widget.ProgressBar;
 
+import java.io.ByteArrayInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Locale;
-import java.util.Map;
 
 import static net.aquadc.vkauth.Util.dp;
-import static net.aquadc.vkauth.Util.explodeQueryString;
 
 /**
  * Created by mike on 21.02.17
@@ -44,35 +49,66 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
     private static final String VK_RESULT_INTENT_NAME = "com.vk.auth-token";
     private static final String VK_EXTRA_TOKEN_DATA = "extra-token-data";
 
-    private static final String REDIRECT_URL = "https://oauth.vk.com/blank.html";
+    private static final String AUTHORIZE_PATH = "/authorize";
+    /*pkg*/ static final String REDIRECT_PATH = "/blank.html";
     private static final String ERROR = "error";
     private static final String CANCEL = "deliverResult";
 
-    /*pkg*/ final ViewGroup root;
-    /*pkg*/ final View progress;
+    /*pkg*/ ViewGroup root;
+    /*pkg*/ View progress;
     /*pkg*/ final WebView webView;
-    /*pkg*/ final Dialog dialog;
+    /*pkg*/ Dialog dialog;
     /*pkg*/ final Bundle arguments;
     private final Host host;
+    private final AuthMetrics metrics;
 
-    /*pkg*/ volatile String email;
+    /*pkg*/ final EmailBridge emailBridge = new EmailBridge();
+    /*pkg*/ final String codeVerifier; // null in implicit flow
     private int resultCode = Activity.RESULT_CANCELED;
     private Intent data;
+    private OAuthWebViewClient client;
+    /*pkg*/ boolean destroyed;
 
     /*pkg*/ VkOAuthDialogHolder(Context context, Bundle arguments, Bundle savedInstanceState, Host host) {
-        this.root = new FrameLayout(context);
+        this.metrics = VkApp.getInstance(arguments.getInt(VK_EXTRA_CLIENT_ID)).metrics;
+        long start = metrics.start();
+        AuthMetrics.traceBegin("VkAuth dialog creation");
+
+        webView = WebViewPool.obtain(context);
+        webView.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        createDialog(context);
+
+        this.arguments = arguments;
+        this.host = host;
+
+        String verifier = null;
+        if (savedInstanceState != null) {
+            emailBridge.email = savedInstanceState.getString("email");
+            verifier = savedInstanceState.getString("code verifier");
+        }
+        if (verifier == null && arguments.getBoolean(VkApp.VkExtraCodeFlow, false)) {
+            verifier = CodeExchange.newVerifier();
+        }
+        this.codeVerifier = verifier;
+
+        AuthMetrics.traceEnd();
+        metrics.stage(AuthenticationWay.WebView, AuthMetricsListener.Stage.DIALOG_CREATION, start);
+
+        Bundle webViewState = savedInstanceState == null ? null : savedInstanceState.getBundle("web view");
+        if (webViewState == null || !restorePage(webViewState)) {
+            loadPage();
+        }
+    }
+
+    private void createDialog(Context context) {
+        root = new FrameLayout(context);
         root.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
         int tenDp = dp(context, 10);
         root.setPadding(tenDp, tenDp, tenDp, tenDp);
 
-        this.progress = new ProgressBar(context);
+        progress = new ProgressBar(context);
         progress.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
         root.addView(progress);
-
-        webView = new WebView(context);
-        webView.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
-        webView.setBackgroundColor(Color.TRANSPARENT);
-        webView.setVisibility(View.INVISIBLE);
         root.addView(webView);
 
         dialog = new Dialog(context, R.style.VKAlertDialog);
@@ -80,82 +116,229 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             dialog.getWindow().setStatusBarColor(Color.TRANSPARENT);
         }
+    }
 
-        this.arguments = arguments;
-        this.host = host;
-
-        if (savedInstanceState != null) {
-            email = savedInstanceState.getString("email");
+    /**
+     * Moves WebView, with its page as is, into a new dialog bound to {@code context}.
+     * Used by retained fragments after a configuration change.
+     */
+    /*pkg*/ void reattach(Context context) {
+        int progressVisibility = progress.getVisibility();
+        root.removeView(webView);
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(context);
+        createDialog(context);
+        progress.setVisibility(progressVisibility);
+
+        // error prompt belongs to the old window, retry instead
+        if (client != null && client.dismissError()) {
+            loadPage();
         }
+    }
+
+    @SuppressLint("AddJavascriptInterface")
+    private String attachClient() {
+        String redirectUrl = oAuthHost(arguments) + REDIRECT_PATH;
+        VkApp app = VkApp.getInstance(arguments.getInt(VK_EXTRA_CLIENT_ID));
+        webView.setWebViewClient(client = new OAuthWebViewClient(host, metrics, redirectUrl, app.resourcePolicy(), app.assetCache()));
 
-        loadPage();
+        // spy for email, part 1
+        if (Build.VERSION.SDK_INT >= 19) {
+            webView.addJavascriptInterface(emailBridge, "SDK");
+        }
+        return redirectUrl;
     }
 
-    @SuppressLint({"SetJavaScriptEnabled", "AddJavascriptInterface"})
     /*pkg*/ void loadPage() {
+        long start = metrics.start();
+        AuthMetrics.traceBegin("VkAuth page load request");
         try {
-            Bundle parameters = arguments;
-            int appId = parameters.getInt(VK_EXTRA_CLIENT_ID, 0);
-            String scope = parameters.getString(VK_EXTRA_SCOPE);
-            String apiVersion = parameters.getString(VK_EXTRA_API_VERSION);
-            boolean revoke = parameters.getBoolean(VK_EXTRA_REVOKE, false);
-            String urlToLoad = String.format(Locale.US,
-                    "https://oauth.vk.com/authorize?client_id=%s" +
+            String redirectUrl = attachClient();
+            webView.loadUrl(authorizeUrl(arguments, redirectUrl, codeVerifier));
+            webView.setVisibility(View.INVISIBLE);
+            progress.setVisibility(View.VISIBLE);
+        } finally {
+            AuthMetrics.traceEnd();
+        }
+        metrics.stage(AuthenticationWay.WebView, AuthMetricsListener.Stage.PAGE_LOAD_REQUEST, start);
+    }
+
+    /**
+     * Restores the page saved by {@link #onSaveInstanceState} after process death.
+     * WebView restores its history, the page itself may be taken from cache or loaded again.
+     * @return whether the state was accepted
+     */
+    private boolean restorePage(Bundle webViewState) {
+        attachClient();
+        if (webView.restoreState(webViewState) == null) return false;
+        webView.setVisibility(View.INVISIBLE);
+        progress.setVisibility(View.VISIBLE);
+        return true;
+    }
+
+    /*pkg*/ static String oAuthHost(Bundle parameters) {
+        String oAuthHost = parameters.getString(VkApp.VkExtraOAuthHost);
+        return oAuthHost == null ? VkApp.DefaultOAuthHost : oAuthHost;
+    }
+
+    /**
+     * Builds OAuth authorization page URL.
+     * @param parameters   request extras built by {@link VkApp}
+     * @param redirectUrl  where to redirect with auth result
+     * @param codeVerifier PKCE verifier for code flow, or {@code null} for implicit flow
+     */
+    /*pkg*/ static String authorizeUrl(Bundle parameters, String redirectUrl, @Nullable String codeVerifier) {
+        int appId = parameters.getInt(VK_EXTRA_CLIENT_ID, 0);
+        String scope = parameters.getString(VK_EXTRA_SCOPE);
+        String apiVersion = parameters.getString(VK_EXTRA_API_VERSION);
+        boolean revoke = parameters.getBoolean(VK_EXTRA_REVOKE, false);
+        String responseType = codeVerifier == null
+                ? "token"
+                : "code&code_challenge=" + CodeExchange.challenge(codeVerifier) + "&code_challenge_method=S256";
+        try {
+            return String.format(Locale.US,
+                    "%s" + AUTHORIZE_PATH + "?client_id=%s" +
                             "&scope=%s" +
                             "&redirect_uri=%s" +
                             "&display=mobile" +
                             "&v=%s" +
-                            "&response_type=token&revoke=%d",
-                    appId, URLEncoder.encode(scope, "UTF-8"), URLEncoder.encode(REDIRECT_URL, "UTF-8"), apiVersion, revoke ? 1 : 0);
-
-            webView.setWebViewClient(new OAuthWebViewClient(host));
-            WebSettings webSettings = webView.getSettings();
-            webSettings.setJavaScriptEnabled(true);
-
-            // spy for email, part 1
-            if (Build.VERSION.SDK_INT >= 19) {
-                webView.addJavascriptInterface(new Object() {
-                    @JavascriptInterface
-                    public void setEmail(String email) {
-                        VkOAuthDialogHolder.this.email = email;
-                    }
-                }, "SDK");
-            }
-
-            webView.loadUrl(urlToLoad);
-            webView.setBackgroundColor(Color.TRANSPARENT);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                webView.setLayerType(WebView.LAYER_TYPE_SOFTWARE, null);
-            }
-            webView.setVerticalScrollBarEnabled(false);
-            webView.setVisibility(View.INVISIBLE);
-            webView.setOverScrollMode(WebView.OVER_SCROLL_NEVER);
-            progress.setVisibility(View.VISIBLE);
+                            "&response_type=%s&revoke=%d",
+                    oAuthHost(parameters), appId, URLEncoder.encode(scope, "UTF-8"), URLEncoder.encode(redirectUrl, "UTF-8"), apiVersion,
+                    responseType, revoke ? 1 : 0);
         } catch (UnsupportedEncodingException e) {
             throw new AssertionError(e);
         }
     }
 
+    /**
+     * Wraps redirect URL with auth result into an Intent {@link VkApp#onActivityResult} understands.
+     */
+    /*pkg*/ static Intent redirectResult(String url, String redirectUrl, @Nullable String codeVerifier) {
+        Intent data = new Intent(VK_RESULT_INTENT_NAME);
+        // token comes in fragment, code may come in query
+        int paramsStart = url.indexOf('#');
+        if (paramsStart < 0) paramsStart = url.indexOf('?');
+        data.putExtra(VK_EXTRA_TOKEN_DATA, url.substring(paramsStart + 1));
+        if (codeVerifier != null) {
+            data.putExtra(VkApp.VkExtraCodeVerifier, codeVerifier);
+            data.putExtra(VkApp.VkExtraRedirectUri, redirectUrl);
+        }
+        return data;
+    }
+
+    /**
+     * @return whether the result returned by {@link #redirectResult} means failure
+     */
+    /*pkg*/ static boolean isError(Intent data) {
+        String resultParams = data.getStringExtra(VK_EXTRA_TOKEN_DATA);
+        final boolean[] error = { false };
+        QueryString.parse(resultParams, new QueryString.Visitor() {
+            @Override public void parameter(String source, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+                if (QueryString.keyEquals(source, keyStart, keyEnd, ERROR) || QueryString.keyEquals(source, keyStart, keyEnd, CANCEL)) {
+                    error[0] = true;
+                }
+            }
+        });
+        return error[0];
+    }
+
     /*pkg*/ void onSaveInstanceState(final Bundle outState) {
-        outState.putString("email", email);
+        outState.putString("email", emailBridge.email);
+        outState.putString("code verifier", codeVerifier);
+        if (!destroyed) {
+            Bundle webViewState = new Bundle();
+            if (webView.saveState(webViewState) != null) {
+                outState.putBundle("web view", webViewState);
+            }
+        }
+    }
+
+    /**
+     * Stops and destroys WebView, so neither it nor its client and JS bridge outlive the dialog.
+     * Idempotent, main thread only.
+     */
+    /*pkg*/ void destroy() {
+        if (destroyed) return;
+        destroyed = true;
+
+        Context context = webView.getContext();
+        if (client != null) client.dismissError();
+        webView.stopLoading();
+        if (Build.VERSION.SDK_INT >= 19) {
+            webView.removeJavascriptInterface("SDK");
+        }
+        root.removeView(webView);
+        WebViewPool.destroy(webView);
+        LeakWatcher.watch(context, this, "VkAuth OAuth dialog");
+    }
+
+    /**
+     * @return result data, with the id of login it belongs to, even if there's no result
+     */
+    /*pkg*/ Intent resultData() {
+        return (data == null ? new Intent() : data).putExtra(VkApp.VkExtraFlightId, arguments.getInt(VkApp.VkExtraFlightId));
+    }
+
+    /**
+     * Creates a holder for a dialog fragment, or moves a retained one to the new Activity.
+     * @param retained holder kept by a retained fragment, if any
+     */
+    /*pkg*/ static VkOAuthDialogHolder onCreateDialog(
+            @Nullable VkOAuthDialogHolder retained, Activity activity, Bundle arguments, Bundle savedInstanceState, Host host
+    ) {
+        if (retained == null || retained.destroyed) {
+            return new VkOAuthDialogHolder(activity, arguments, savedInstanceState, host);
+        }
+        retained.reattach(activity);
+        return retained;
+    }
+
+    /**
+     * @param dialog     fragment's dialog, if any
+     * @param recreating whether the Activity is being re-created, so the dialog is not dismissed but will be re-created too
+     */
+    /*pkg*/ static void onDestroyView(@Nullable Dialog dialog, boolean recreating) {
+        // DialogFragment dismisses its dialog in onDestroyView, and dismissal means cancelled login
+        if (dialog != null && recreating) dialog.setDismissMessage(null);
+    }
+
+    /*pkg*/ void onDismiss() {
+        host.deliverResult();
+        destroy();
+    }
+
+    /*pkg*/ static void onDestroy(@Nullable VkOAuthDialogHolder holder) {
+        if (holder != null) holder.destroy();
+    }
+
+    /*pkg*/ int requestCode() {
+        return arguments.getInt("request code");
     }
 
     /*pkg*/ void deliverResultToActivity(Activity activity) {
         VkApp
                 .getInstance(arguments.getInt(VK_EXTRA_CLIENT_ID))
-                .onActivityResult(arguments.getInt("request code"), resultCode, data, ((VkApp.VkAuthCallbackProvider) activity).getVkAuthCallback());
+                .onActivityResult(requestCode(), resultCode, resultData(), ((VkApp.VkAuthCallbackProvider) activity).getVkAuthCallback());
     }
 
     private interface Host {
         VkOAuthDialogHolder getHolder();
         void dismiss();
         void setResultAndFinish(int result, Intent data);
+        void deliverResult();
     }
 
     public static final class NativeFragment extends android.app.DialogFragment implements Host {
         private VkOAuthDialogHolder holder;
+        @Override public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setRetainInstance(Build.VERSION.SDK_INT < 17 || NativeNested.isTopLevel(this)); // nested fragments can't be retained
+        }
         @Override public Dialog onCreateDialog(Bundle savedInstanceState) {
-            return (holder = new VkOAuthDialogHolder(getActivity(), getArguments(), savedInstanceState, this)).dialog;
+            return (holder = VkOAuthDialogHolder.onCreateDialog(holder, getActivity(), getArguments(), savedInstanceState, this)).dialog;
+        }
+        @Override public void onDestroyView() {
+            VkOAuthDialogHolder.onDestroyView(getDialog(), getActivity().isChangingConfigurations());
+            super.onDestroyView();
         }
         @Override public void onSaveInstanceState(Bundle outState) {
             super.onSaveInstanceState(outState);
@@ -163,15 +346,16 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
         }
         @Override public void onDismiss(DialogInterface dialog) {
             super.onDismiss(dialog);
-            deliverResult();
+            holder.onDismiss();
+        }
+        @Override public void onDestroy() {
+            super.onDestroy();
+            VkOAuthDialogHolder.onDestroy(holder);
         }
-        private void deliverResult() {
+        @Override public void deliverResult() {
             android.app.Fragment target = getTargetFragment();
-            if (target == null) {
-                holder.deliverResultToActivity(getActivity());
-            } else {
-                target.onActivityResult(getArguments().getInt("request code"), holder.resultCode, holder.data);
-            }
+            if (target == null) holder.deliverResultToActivity(getActivity());
+            else target.onActivityResult(holder.requestCode(), holder.resultCode, holder.resultData());
         }
         @Override public VkOAuthDialogHolder getHolder() {
             return holder;
@@ -185,8 +369,16 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
 
     public static final class CompatFragment extends android.support.v4.app.DialogFragment implements Host {
         private VkOAuthDialogHolder holder;
+        @Override public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setRetainInstance(getParentFragment() == null); // nested fragments can't be retained
+        }
         @NonNull @Override public Dialog onCreateDialog(Bundle savedInstanceState) {
-            return (holder = new VkOAuthDialogHolder(getActivity(), getArguments(), savedInstanceState, this)).dialog;
+            return (holder = VkOAuthDialogHolder.onCreateDialog(holder, getActivity(), getArguments(), savedInstanceState, this)).dialog;
+        }
+        @Override public void onDestroyView() {
+            VkOAuthDialogHolder.onDestroyView(getDialog(), getActivity().isChangingConfigurations());
+            super.onDestroyView();
         }
         @Override public void onSaveInstanceState(Bundle outState) {
             super.onSaveInstanceState(outState);
@@ -194,15 +386,16 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
         }
         @Override public void onDismiss(DialogInterface dialog) {
             super.onDismiss(dialog);
-            deliverResult();
+            holder.onDismiss();
         }
-        private void deliverResult() {
+        @Override public void onDestroy() {
+            super.onDestroy();
+            VkOAuthDialogHolder.onDestroy(holder);
+        }
+        @Override public void deliverResult() {
             android.support.v4.app.Fragment target = getTargetFragment();
-            if (target == null) {
-                holder.deliverResultToActivity(getActivity());
-            } else {
-                target.onActivityResult(getArguments().getInt("request code"), holder.resultCode, holder.data);
-            }
+            if (target == null) holder.deliverResultToActivity(getActivity());
+            else target.onActivityResult(holder.requestCode(), holder.resultCode, holder.resultData());
         }
         @Override public VkOAuthDialogHolder getHolder() {
             return holder;
@@ -216,8 +409,16 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
 
     public static final class XFragment extends androidx.fragment.app.DialogFragment implements Host {
         private VkOAuthDialogHolder holder;
+        @Override public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setRetainInstance(getParentFragment() == null); // nested fragments can't be retained
+        }
         @NonNull @Override public Dialog onCreateDialog(Bundle savedInstanceState) {
-            return (holder = new VkOAuthDialogHolder(getActivity(), getArguments(), savedInstanceState, this)).dialog;
+            return (holder = VkOAuthDialogHolder.onCreateDialog(holder, getActivity(), getArguments(), savedInstanceState, this)).dialog;
+        }
+        @Override public void onDestroyView() {
+            VkOAuthDialogHolder.onDestroyView(getDialog(), getActivity().isChangingConfigurations());
+            super.onDestroyView();
         }
         @Override public void onSaveInstanceState(Bundle outState) {
             super.onSaveInstanceState(outState);
@@ -225,15 +426,16 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
         }
         @Override public void onDismiss(DialogInterface dialog) {
             super.onDismiss(dialog);
-            deliverResult();
+            holder.onDismiss();
+        }
+        @Override public void onDestroy() {
+            super.onDestroy();
+            VkOAuthDialogHolder.onDestroy(holder);
         }
-        private void deliverResult() {
+        @Override public void deliverResult() {
             androidx.fragment.app.Fragment target = getTargetFragment();
-            if (target == null) {
-                holder.deliverResultToActivity(getActivity());
-            } else {
-                target.onActivityResult(getArguments().getInt("request code"), holder.resultCode, holder.data);
-            }
+            if (target == null) holder.deliverResultToActivity(getActivity());
+            else target.onActivityResult(holder.requestCode(), holder.resultCode, holder.resultData());
         }
         @Override public VkOAuthDialogHolder getHolder() {
             return holder;
@@ -245,47 +447,133 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
         }
     }
 
+    @TargetApi(17)
+    private static final class NativeNested {
+        /*pkg*/ static boolean isTopLevel(android.app.Fragment fragment) {
+            return fragment.getParentFragment() == null;
+        }
+    }
+
     private static final class OAuthWebViewClient extends WebViewClient
             implements DialogInterface.OnClickListener, DialogInterface.OnCancelListener {
         boolean canShowPage = true;
         final Host host;
+        final AuthMetrics metrics;
+        final String redirectUrl;
+        final VkResourcePolicy policy;
+        final VkAssetCache assetCache;
 
-        /*pkg*/ OAuthWebViewClient(Host host) {
+        // Redirect may be noticed by shouldOverrideUrlLoading and onPageStarted,
+        // in any order and any subset depending on WebView version. The first one wins.
+        // shouldInterceptRequest sees it too, but without the fragment, where the result is.
+        private boolean redirected; // main thread only
+
+        private long pageStart;
+        private int pageCookie;
+        private Dialog errorDialog;
+
+        /*pkg*/ OAuthWebViewClient(Host host, AuthMetrics metrics, String redirectUrl, VkResourcePolicy policy, @Nullable VkAssetCache assetCache) {
             this.host = host;
+            this.metrics = metrics;
+            this.redirectUrl = redirectUrl;
+            this.policy = policy;
+            this.assetCache = assetCache;
         }
 
-        boolean processUrl(String url) {
-            if (url.startsWith(REDIRECT_URL)) {
-                Intent data = new Intent(VK_RESULT_INTENT_NAME);
-                String extraData = url.substring(url.indexOf('#') + 1);
-                data.putExtra(VK_EXTRA_TOKEN_DATA, extraData);
-                Map<String, String> resultParams = explodeQueryString(extraData);
+        /**
+         * Main thread only.
+         * @return whether the URL is the redirect, regardless of whether it was the first one
+         */
+        boolean processUrl(WebView view, String url) {
+            if (!url.startsWith(redirectUrl)) return false;
+            if (redirected || host.getHolder().destroyed) return true;
+            redirected = true;
+
+            view.stopLoading();
+            long start = metrics.start();
+            AuthMetrics.traceBegin("VkAuth redirect");
+            Intent data = redirectResult(url, redirectUrl, host.getHolder().codeVerifier);
+            boolean error = isError(data);
+            AuthMetrics.traceEnd();
+            metrics.stage(AuthenticationWay.WebView, AuthMetricsListener.Stage.REDIRECT, start);
+
+            host.setResultAndFinish(error ? Activity.RESULT_CANCELED : Activity.RESULT_OK, data);
+            return true;
+        }
 
-                if (resultParams != null && (resultParams.containsKey(ERROR) || resultParams.containsKey(CANCEL))) {
-                    host.setResultAndFinish(Activity.RESULT_CANCELED, data);
-                } else {
-                    host.setResultAndFinish(Activity.RESULT_OK, data);
-                }
-                return true;
-            }
-            return false;
+        /**
+         * Called on a WebView thread. Answers the redirect with an empty page, so it never reaches network.
+         * Doesn't deliver anything: requests carry no fragment, navigation callbacks will see the full URL.
+         */
+        @Nullable private WebResourceResponse interceptRedirect(String url) {
+            if (!url.startsWith(redirectUrl)) return null;
+            return new WebResourceResponse("text/html", "UTF-8", new ByteArrayInputStream(new byte[0]));
         }
 
         @Override @SuppressWarnings("deprecation")
         public boolean shouldOverrideUrlLoading(WebView view, String url) {
-            if (processUrl(url))
+            if (processUrl(view, url))
                 return true;
             canShowPage = true;
             return false;
         }
 
+        // called on a background thread
+
+        @Override @SuppressWarnings("deprecation")
+        public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+            WebResourceResponse redirect = interceptRedirect(url);
+            if (redirect != null) return redirect;
+            // before API 21, there's no way to tell the page from its sub-resources, hope no rule matches the page
+            return policy == VkResourcePolicy.AllowAll ? null : intercept(Uri.parse(url), false);
+        }
+
+        @TargetApi(21) @Override
+        public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+            WebResourceResponse redirect = interceptRedirect(request.getUrl().toString());
+            if (redirect != null) return redirect;
+            if (request.isForMainFrame() || !"GET".equals(request.getMethod())) return null;
+            if (policy != VkResourcePolicy.AllowAll) {
+                WebResourceResponse filtered = intercept(request.getUrl(), true);
+                if (filtered != null) return filtered;
+            }
+            return assetCache == null ? null : assetCache.get(request.getUrl(), request.getRequestHeaders());
+        }
+
+        private WebResourceResponse intercept(Uri uri, boolean canFail) {
+            String host = uri.getHost();
+            switch (policy.decide(host == null ? null : host.toLowerCase(Locale.US), uri.getPath())) {
+                case ALLOW:
+                    return null;
+                case BLOCK:
+                    return canFail ? Api21.blocked() : stub(uri);
+                case STUB:
+                    return stub(uri);
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        private static WebResourceResponse stub(Uri uri) {
+            String extension = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
+            String mime = extension == null ? null : MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            return new WebResourceResponse(mime == null ? "text/plain" : mime, null, new ByteArrayInputStream(new byte[0]));
+        }
+
         @Override
         public void onPageStarted(WebView view, String url, Bitmap favicon) {
-            processUrl(url);
+            if (!processUrl(view, url)) {
+                pageStart = metrics.start();
+                AuthMetrics.asyncTraceBegin("VkAuth page load", ++pageCookie);
+            }
         }
 
         @Override
         public void onPageFinished(WebView view, String url) {
+            AuthMetrics.asyncTraceEnd("VkAuth page load", pageCookie);
+            metrics.stage(AuthenticationWay.WebView, AuthMetricsListener.Stage.PAGE_LOAD, pageStart);
+            pageStart = 0;
+
             if (canShowPage) {
                 VkOAuthDialogHolder holder = host.getHolder();
                 holder.progress.setVisibility(View.GONE);
@@ -293,7 +581,7 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
 
                 // spy for email, part 2
                 if (Build.VERSION.SDK_INT >= 19) {
-                    String email = holder.email;
+                    String email = holder.emailBridge.email;
                     if (email != null) {
                         view.evaluateJavascript("document.forms[0].email.value = \"" + email.replace("\\", "\\\\").replace("\"", "\\\"") + "\"", null);
                     }
@@ -311,8 +599,19 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
                     .setNegativeButton(android.R.string.cancel, this)
                     .setOnCancelListener(this);
 
-            builder.show(); // was in try-catch O_o
+            errorDialog = builder.show(); // was in try-catch O_o
+
+        }
 
+        /**
+         * @return whether error prompt was shown
+         */
+        /*pkg*/ boolean dismissError() {
+            if (errorDialog == null) return false;
+            errorDialog.setOnCancelListener(null);
+            errorDialog.dismiss();
+            errorDialog = null;
+            return true;
         }
 
         @Override
@@ -336,4 +635,22 @@ import static net.aquadc.vkauth.Util.explodeQueryString;
             host.dismiss();
         }
     }
+
+    /**
+     * Receives email typed on OAuth page. Static, so JS side can't keep the holder alive.
+     */
+    /*pkg*/ static final class EmailBridge {
+        /*pkg*/ volatile String email;
+        @JavascriptInterface
+        public void setEmail(String email) {
+            this.email = email;
+        }
+    }
+
+    @TargetApi(21)
+    private static final class Api21 {
+        /*pkg*/ static WebResourceResponse blocked() {
+            return new WebResourceResponse("text/plain", "UTF-8", 403, "Blocked", null, new ByteArrayInputStream(new byte[0]));
+        }
+    }
 }
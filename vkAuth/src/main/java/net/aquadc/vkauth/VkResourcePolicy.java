@@ -0,0 +1,169 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.aquadc.vkauth.Util.required;
+
+/**
+ * Decides which sub-resources of OAuth page {@link AuthenticationWay#WebView} may load.
+ * Pages themselves and CAPTCHA images are never filtered.
+ * Policies are immutable, {@code block*} and {@code stub*} methods return new instances with fresh counters.
+ * @see VkApp#setResourcePolicy(VkResourcePolicy)
+ */
+public final class VkResourcePolicy {
+
+    public enum Action {
+        /** Load normally. */
+        ALLOW,
+        /** Fail the request, like a network error. Treated like {@link #STUB} before API 21. */
+        BLOCK,
+        /** Respond with an empty successful response, so the page doesn't notice anything. */
+        STUB,
+    }
+
+    /**
+     * Loads everything, default one.
+     */
+    public static final VkResourcePolicy AllowAll = new VkResourcePolicy(new Rule[0]);
+
+    /**
+     * Blocks known analytics and ad hosts, stubs fonts and decorative images.
+     */
+    public static final VkResourcePolicy Lightweight = AllowAll
+            .blockHost("top-fwz1.mail.ru")
+            .blockHost("ad.mail.ru")
+            .blockHost("mc.yandex.ru")
+            .blockHost("www.google-analytics.com")
+            .blockHost("www.googletagmanager.com")
+            .blockPath("vk.com", "/rtrg")
+            .stubExtension("woff")
+            .stubExtension("woff2")
+            .stubExtension("ttf")
+            .stubExtension("otf")
+            .stubExtension("png")
+            .stubExtension("jpg")
+            .stubExtension("jpeg")
+            .stubExtension("gif")
+            .stubExtension("webp")
+            .stubExtension("svg")
+            .stubExtension("ico");
+
+    private static final String CaptchaPath = "/captcha.php";
+
+    private final Rule[] rules;
+    private final AtomicInteger allowed = new AtomicInteger();
+    private final AtomicInteger blocked = new AtomicInteger();
+    private final AtomicInteger stubbed = new AtomicInteger();
+
+    private VkResourcePolicy(Rule[] rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param host a host, its subdomains are matched, too
+     * @return a policy which blocks all requests to {@code host}
+     */
+    public VkResourcePolicy blockHost(String host) {
+        required(host, "host");
+        return with(new Rule(Action.BLOCK, host, null, null));
+    }
+
+    /**
+     * @return a policy which blocks requests to {@code host} and its subdomains with path starting with {@code pathPrefix}
+     */
+    public VkResourcePolicy blockPath(String host, String pathPrefix) {
+        required(host, "host", pathPrefix, "pathPrefix");
+        return with(new Rule(Action.BLOCK, host, pathPrefix, null));
+    }
+
+    /**
+     * @param extension file extension without dot, e. g. {@code "woff"}
+     * @return a policy which responds with empty body to requests for files with such extension, on any host
+     */
+    public VkResourcePolicy stubExtension(String extension) {
+        required(extension, "extension");
+        return with(new Rule(Action.STUB, null, null, '.' + extension.toLowerCase(Locale.US)));
+    }
+
+    /**
+     * @return a policy which responds with empty body to all requests to {@code host} and its subdomains
+     */
+    public VkResourcePolicy stubHost(String host) {
+        required(host, "host");
+        return with(new Rule(Action.STUB, host, null, null));
+    }
+
+    private VkResourcePolicy with(Rule rule) {
+        Rule[] rules = Arrays.copyOf(this.rules, this.rules.length + 1);
+        rules[this.rules.length] = rule;
+        return new VkResourcePolicy(rules);
+    }
+
+    /**
+     * Decides what to do with a sub-resource request and counts the decision. Rules are checked in order they were added.
+     * @param host lower-case host
+     * @param path path without query
+     */
+    @NonNull /*pkg*/ Action decide(@Nullable String host, @Nullable String path) {
+        Action action = Action.ALLOW;
+        if (host != null && path != null && !path.startsWith(CaptchaPath)) {
+            for (Rule rule : rules) {
+                if (rule.matches(host, path)) {
+                    action = rule.action;
+                    break;
+                }
+            }
+        }
+        (action == Action.ALLOW ? allowed : action == Action.BLOCK ? blocked : stubbed).incrementAndGet();
+        return action;
+    }
+
+    /**
+     * @return number of sub-resource requests passed through since this policy was created
+     */
+    public int getAllowedCount() {
+        return allowed.get();
+    }
+
+    /**
+     * @return number of sub-resource requests blocked since this policy was created
+     */
+    public int getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return number of sub-resource requests answered with an empty response since this policy was created
+     */
+    public int getStubbedCount() {
+        return stubbed.get();
+    }
+
+    private static final class Rule {
+        /*pkg*/ final Action action;
+        @Nullable private final String host;
+        @Nullable private final String pathPrefix;
+        @Nullable private final String extension;
+
+        /*pkg*/ Rule(Action action, @Nullable String host, @Nullable String pathPrefix, @Nullable String extension) {
+            this.action = action;
+            this.host = host == null ? null : host.toLowerCase(Locale.US);
+            this.pathPrefix = pathPrefix;
+            this.extension = extension;
+        }
+
+        /*pkg*/ boolean matches(String host, String path) {
+            if (this.host != null && !(host.equals(this.host) || (host.endsWith(this.host) && host.charAt(host.length() - this.host.length() - 1) == '.'))) {
+                return false;
+            }
+            if (pathPrefix != null && !path.startsWith(pathPrefix)) return false;
+            return extension == null || path.regionMatches(true, path.length() - extension.length(), extension, 0, extension.length());
+        }
+    }
+
+}
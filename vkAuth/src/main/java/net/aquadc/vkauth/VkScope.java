@@ -2,7 +2,6 @@ package net.aquadc.vkauth;
 
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
@@ -33,8 +32,6 @@ public enum VkScope {
     /** @deprecated can't see any reason to use it */ @Deprecated NOHTTPS("nohttps"),
     DIRECT("direct");
 
-    private static final VkScope[] V = values();
-
     /*pkg*/ final String scopeName;
 
     VkScope(String scopeName) {
@@ -47,41 +44,31 @@ public enum VkScope {
         return EnumSet.copyOf(Arrays.asList(scope));
     }
 
-    /**
-     * @throws NoSuchElementException when meets unknown scope
-     */
-    /*pkg*/ static Set<VkScope> asSet(String[] scope) {
-        int size = scope.length;
-        VkScope[] vkScope = new VkScope[size];
-        for (int i = 0; i < size; i++) {
-            vkScope[i] = VkScope.byScopeName(scope[i]);
-        }
-        return asSet(vkScope);
-    }
-
     /**
      * @throws NoSuchElementException when meets unknown scope
      */
     /*pkg*/ static VkScope byScopeName(String scopeName) {
-        for (VkScope s : V) {
-            if (s.scopeName.equals(scopeName)) {
-                return s;
-            }
-        }
-        throw new NoSuchElementException("Scope for name " + scopeName + " was not found.");
-    }
-
-    /*pkg*/ static String joined(Set<VkScope> set) {
-        // similar to TextUtils.join
-        StringBuilder sb = new StringBuilder();
-        Iterator<VkScope> it = set.iterator();
-        if (it.hasNext()) {
-            sb.append(it.next().scopeName);
-            while (it.hasNext()) {
-                sb.append(',');
-                sb.append(it.next().scopeName);
-            }
+        switch (scopeName) {
+            case "notify": return NOTIFY;
+            case "friends": return FRIENDS;
+            case "photos": return PHOTOS;
+            case "audio": return AUDIO;
+            case "video": return VIDEO;
+            case "docs": return DOCS;
+            case "notes": return NOTES;
+            case "pages": return PAGES;
+            case "status": return STATUS;
+            case "wall": return WALL;
+            case "groups": return GROUPS;
+            case "messages": return MESSAGES;
+            case "notifications": return NOTIFICATIONS;
+            case "stats": return STATS;
+            case "ads": return ADS;
+            case "offline": return OFFLINE;
+            case "email": return EMAIL;
+            case "nohttps": return NOHTTPS;
+            case "direct": return DIRECT;
+            default: throw new NoSuchElementException("Scope for name " + scopeName + " was not found.");
         }
-        return sb.toString();
     }
 }
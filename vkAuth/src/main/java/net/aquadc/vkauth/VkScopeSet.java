@@ -0,0 +1,159 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static net.aquadc.vkauth.Util.required;
+
+/**
+ * Immutable set of {@link VkScope}s backed by a bit mask.
+ * Remembers its comma-separated wire representation once computed.
+ */
+public final class VkScopeSet extends AbstractSet<VkScope> {
+
+    private static final VkScope[] V = VkScope.values();
+    /*pkg*/ static final int AllMask = (1 << V.length) - 1;
+
+    private static final VkScopeSet Empty = new VkScopeSet(0);
+
+    /*pkg*/ final int mask;
+    private String joined;
+
+    private VkScopeSet(int mask) {
+        this.mask = mask;
+    }
+
+    /*pkg*/ static VkScopeSet ofMask(int mask) {
+        mask &= AllMask;
+        return mask == 0 ? Empty : new VkScopeSet(mask);
+    }
+
+    public static VkScopeSet of(VkScope... scope) {
+        required(scope, "scope");
+        int mask = 0;
+        for (VkScope s : scope) {
+            mask |= bit(s);
+        }
+        return ofMask(mask);
+    }
+
+    /**
+     * @return the same instance, if {@code scope} is a {@code VkScopeSet}, or an immutable copy otherwise
+     */
+    public static VkScopeSet copyOf(Collection<VkScope> scope) {
+        required(scope, "scope");
+        if (scope instanceof VkScopeSet) return (VkScopeSet) scope;
+        int mask = 0;
+        for (VkScope s : scope) {
+            mask |= bit(s);
+        }
+        return ofMask(mask);
+    }
+
+    /**
+     * Parses comma-separated scope names, as VK sends them.
+     * @throws NoSuchElementException when meets unknown scope
+     */
+    /*pkg*/ static VkScopeSet parse(String commaSeparated) {
+        int mask = 0;
+        int start = 0, length = commaSeparated.length();
+        while (start < length) {
+            int end = commaSeparated.indexOf(',', start);
+            if (end < 0) end = length;
+            if (end > start) {
+                mask |= bit(VkScope.byScopeName(commaSeparated.substring(start, end)));
+            }
+            start = end + 1;
+        }
+        return ofMask(mask);
+    }
+
+    private static int bit(VkScope scope) {
+        return 1 << scope.ordinal();
+    }
+
+    /**
+     * @return a set containing elements of both sets
+     */
+    public VkScopeSet union(Set<VkScope> other) {
+        int m = mask | copyOf(other).mask;
+        return m == mask ? this : ofMask(m);
+    }
+
+    /**
+     * @return a set containing elements of this set which are absent in {@code other}
+     */
+    public VkScopeSet minus(Set<VkScope> other) {
+        int m = mask & ~copyOf(other).mask;
+        return m == mask ? this : ofMask(m);
+    }
+
+    /**
+     * @return comma-separated scope names, as VK expects them
+     */
+    @NonNull public String joined() {
+        String j = joined;
+        if (j == null) {
+            StringBuilder sb = new StringBuilder();
+            for (int m = mask; m != 0; m &= m - 1) {
+                if (sb.length() != 0) sb.append(',');
+                sb.append(V[Integer.numberOfTrailingZeros(m)].scopeName);
+            }
+            joined = j = sb.toString();
+        }
+        return j;
+    }
+
+    @Override public boolean contains(Object o) {
+        return o instanceof VkScope && (mask & bit((VkScope) o)) != 0;
+    }
+
+    @Override public boolean containsAll(Collection<?> c) {
+        if (c instanceof VkScopeSet) {
+            int other = ((VkScopeSet) c).mask;
+            return (mask & other) == other;
+        }
+        return super.containsAll(c);
+    }
+
+    @Override public int size() {
+        return Integer.bitCount(mask);
+    }
+
+    @Override public boolean isEmpty() {
+        return mask == 0;
+    }
+
+    @NonNull @Override public Iterator<VkScope> iterator() {
+        return new Iterator<VkScope>() {
+            private int remaining = mask;
+            @Override public boolean hasNext() {
+                return remaining != 0;
+            }
+            @Override public VkScope next() {
+                if (remaining == 0) throw new NoSuchElementException();
+                VkScope next = V[Integer.numberOfTrailingZeros(remaining)];
+                remaining &= remaining - 1;
+                return next;
+            }
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override public boolean equals(Object o) {
+        if (o instanceof VkScopeSet) return mask == ((VkScopeSet) o).mask;
+        return super.equals(o);
+    }
+
+    @Override public int hashCode() {
+        return super.hashCode(); // must be consistent with other Sets
+    }
+
+}
@@ -0,0 +1,28 @@
+package net.aquadc.vkauth;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Persistent storage for {@link VkAccessToken}.
+ * @see VkApp#setTokenStore(VkTokenStore)
+ * @see FileTokenStore
+ */
+public interface VkTokenStore {
+
+    /**
+     * Reads stored token asynchronously.
+     * @param callback gets notified with the stored token, or {@code null}, on any thread
+     */
+    void read(ReadCallback callback);
+
+    /**
+     * Schedules writing of the token. Must not block.
+     * @param token token to store, or {@code null} to erase the stored one
+     */
+    void write(@Nullable VkAccessToken token);
+
+    interface ReadCallback {
+        void onTokenRead(@Nullable VkAccessToken token);
+    }
+
+}
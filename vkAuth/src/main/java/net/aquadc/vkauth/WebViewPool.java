@@ -0,0 +1,153 @@
+package net.aquadc.vkauth;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.content.res.Configuration;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.View;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of pre-configured WebViews for OAuth dialog.
+ * WebViews are created with {@link MutableContextWrapper} around application context
+ * and get re-based onto dialog's context when taken.
+ * Main thread only.
+ */
+/*pkg*/ final class WebViewPool implements MessageQueue.IdleHandler {
+
+    private static final int Capacity = 2;
+
+    private static WebViewPool instance;
+
+    private final Context appContext;
+    private final ArrayDeque<WebView> pool = new ArrayDeque<>(Capacity);
+    private int requested;
+    private boolean idleHandlerAdded;
+
+    private WebViewPool(Context appContext) {
+        this.appContext = appContext;
+        if (Build.VERSION.SDK_INT >= 14) {
+            TrimCallbacks.register(appContext, this);
+        }
+    }
+
+    /*pkg*/ static void warmUp(final Context context, final int count) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            Util.MainThread.Handler.post(new Runnable() {
+                @Override public void run() {
+                    warmUp(context, count);
+                }
+            });
+            return;
+        }
+
+        WebViewPool p = instance;
+        if (p == null) p = instance = new WebViewPool(context.getApplicationContext());
+        p.requested = Math.min(Capacity, Math.max(p.requested, count));
+        if (p.pool.size() < p.requested && !p.idleHandlerAdded) {
+            Looper.myQueue().addIdleHandler(p);
+            p.idleHandlerAdded = true;
+        }
+    }
+
+    /**
+     * Takes a pre-configured WebView from pool, or creates a new one.
+     * @param context a context WebView will work with, typically an Activity
+     */
+    /*pkg*/ static WebView obtain(Context context) {
+        WebViewPool p = instance;
+        WebView webView = p == null ? null : p.pool.poll();
+        if (webView == null) {
+            webView = create(context.getApplicationContext());
+        }
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(context);
+        return webView;
+    }
+
+    /**
+     * Destroys a WebView taken by {@link #obtain}, dropping its references to client and dialog's context.
+     * It is not returned to pool: it has a page, history, and form data of a finished login.
+     */
+    /*pkg*/ static void destroy(WebView webView) {
+        webView.setWebViewClient(new WebViewClient());
+        MutableContextWrapper context = (MutableContextWrapper) webView.getContext();
+        context.setBaseContext(context.getApplicationContext());
+        webView.destroy();
+    }
+
+    @Override public boolean queueIdle() {
+        if (pool.size() < requested) {
+            WebView webView = create(appContext);
+            pool.add(webView);
+        }
+        boolean more = pool.size() < requested;
+        idleHandlerAdded = more;
+        return more;
+    }
+
+    /*pkg*/ void release() {
+        requested = 0;
+        WebView webView;
+        while ((webView = pool.poll()) != null) {
+            webView.destroy();
+        }
+    }
+
+    private static WebView create(Context appContext) {
+        WebView webView = new WebView(new MutableContextWrapper(appContext));
+        configure(webView);
+        return webView;
+    }
+
+    @SuppressLint("SetJavaScriptEnabled")
+    private static void configure(WebView webView) {
+        WebSettings webSettings = webView.getSettings();
+        webSettings.setJavaScriptEnabled(true);
+
+        webView.setBackgroundColor(Color.TRANSPARENT);
+        if (Build.VERSION.SDK_INT < 19) {
+            // pre-Chromium WebView draws transparent background with artifacts when hardware-accelerated;
+            // newer ones are fine, so let them render on GPU when the window is accelerated
+            webView.setLayerType(WebView.LAYER_TYPE_SOFTWARE, null);
+        }
+        webView.setVerticalScrollBarEnabled(false);
+        webView.setVisibility(View.INVISIBLE);
+        webView.setOverScrollMode(WebView.OVER_SCROLL_NEVER);
+    }
+
+    /**
+     * Separate class not to load ComponentCallbacks2 on API < 14.
+     */
+    @TargetApi(14)
+    private static final class TrimCallbacks implements ComponentCallbacks2 {
+        private final WebViewPool pool;
+        private TrimCallbacks(WebViewPool pool) {
+            this.pool = pool;
+        }
+        /*pkg*/ static void register(Context appContext, WebViewPool pool) {
+            appContext.registerComponentCallbacks(new TrimCallbacks(pool));
+        }
+        @Override public void onTrimMemory(int level) {
+            // UI_HIDDEN lies between RUNNING_* and background levels: going to background alone must not waste the warm-up
+            if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE) {
+                pool.release();
+            }
+        }
+        @Override public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+        @Override public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package net.aquadc.vkauth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static net.aquadc.vkauth.VkApiClient.Priority.PREFETCH;
+import static net.aquadc.vkauth.VkApiClient.Priority.USER_VISIBLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time is passed to scheduler explicitly, so these tests run against a fake clock, {@link #now}.
+ */
+public final class ApiSchedulerTest {
+
+    private final ApiScheduler scheduler = new ApiScheduler(3, 1);
+    private long now = 1_000;
+
+    @Test public void userVisibleCallsGoFirst() {
+        VkApiClient.Call prefetch1 = enqueue("a", PREFETCH), visible1 = enqueue("a", USER_VISIBLE);
+        VkApiClient.Call prefetch2 = enqueue("a", PREFETCH), visible2 = enqueue("a", USER_VISIBLE);
+
+        assertEquals(Arrays.asList(visible1, visible2, prefetch1), poll("a", 3));
+        assertEquals(Collections.singletonList(prefetch2), poll("a", 3));
+        assertEquals(0, scheduler.size("a"));
+    }
+
+    @Test public void prefetchFillsTheRestOfBatch() {
+        VkApiClient.Call prefetch = enqueue("a", PREFETCH), visible = enqueue("a", USER_VISIBLE);
+        assertEquals(1, scheduler.depth(USER_VISIBLE));
+        assertEquals(1, scheduler.depth(PREFETCH));
+        assertEquals(Arrays.asList(visible, prefetch), poll("a", 25));
+    }
+
+    @Test public void tokensHaveSeparateQueuesAndLimits() {
+        VkApiClient.Call a = enqueue("a", USER_VISIBLE), b = enqueue("b", USER_VISIBLE);
+        assertEquals(0, scheduler.tryAcquire("a", now));
+        assertEquals(0, scheduler.tryAcquire("b", now));
+        assertEquals(334, scheduler.tryAcquire("a", now));
+        assertEquals(Collections.singletonList(a), poll("a", 25));
+        assertEquals(Collections.singletonList(b), poll("b", 25));
+    }
+
+    @Test public void rateLimitAppliesOverTime() {
+        enqueue("a", USER_VISIBLE);
+        assertEquals(0, scheduler.tryAcquire("a", now));
+        assertEquals(334, scheduler.tryAcquire("a", now));
+        now += 334;
+        assertEquals(0, scheduler.tryAcquire("a", now));
+    }
+
+    @Test public void rejectedBatchIsRequeuedToTheHead() {
+        VkApiClient.Call v1 = enqueue("a", USER_VISIBLE), v2 = enqueue("a", USER_VISIBLE), p1 = enqueue("a", PREFETCH);
+        List<VkApiClient.Call> batch = poll("a", 2);
+        assertEquals(Arrays.asList(v1, v2), batch);
+
+        VkApiClient.Call v3 = enqueue("a", USER_VISIBLE); // issued while the batch was in flight
+        assertEquals(0, scheduler.tryAcquire("a", now));
+        scheduler.requeue("a", batch, now, 1000); // VK said error 6
+        assertEquals(Arrays.asList(v1, v2, v3, p1), poll("a", 25));
+    }
+
+    @Test public void requeueHoldsTokenCalls() {
+        enqueue("a", USER_VISIBLE);
+        enqueue("b", USER_VISIBLE);
+        scheduler.requeue("a", poll("a", 25), now, 1000);
+        assertEquals(1000, scheduler.tryAcquire("a", now));
+        assertEquals(0, scheduler.tryAcquire("b", now)); // other tokens aren't affected
+        now += 990;
+        assertTrue(scheduler.tryAcquire("a", now) > 0);
+        now += 20;
+        assertEquals(0, scheduler.tryAcquire("a", now));
+    }
+
+    @Test public void requeueSurvivesTokenQueueRemoval() {
+        VkApiClient.Call v1 = enqueue("a", USER_VISIBLE);
+        List<VkApiClient.Call> batch = poll("a", 25);
+        scheduler.retainOnly(null);
+        scheduler.requeue("a", batch, now, 1000);
+        assertEquals(Collections.singletonList(v1), poll("a", 25));
+    }
+
+    @Test public void retainOnlyReturnsCallsOfReplacedTokens() {
+        VkApiClient.Call old1 = enqueue("old", USER_VISIBLE), old2 = enqueue("old", PREFETCH);
+        VkApiClient.Call current = enqueue("new", USER_VISIBLE);
+
+        List<VkApiClient.Call> stale = scheduler.retainOnly("new");
+        assertEquals(Arrays.asList(old1, old2), stale);
+        assertEquals(0, scheduler.size("old"));
+        assertEquals(1, scheduler.depth(USER_VISIBLE));
+        assertEquals(Collections.singletonList(current), poll("new", 25));
+    }
+
+    @Test public void retainOnlyNullDropsEverything() {
+        enqueue("a", USER_VISIBLE);
+        enqueue("b", PREFETCH);
+        assertEquals(2, scheduler.retainOnly(null).size());
+        assertEquals(0, scheduler.depth(USER_VISIBLE) + scheduler.depth(PREFETCH));
+        assertTrue(scheduler.retainOnly(null).isEmpty());
+    }
+
+    @Test public void cancelledCallsAreSkipped() {
+        VkApiClient.Call cancelled = enqueue("a", USER_VISIBLE), kept = enqueue("a", USER_VISIBLE);
+        cancelled.cancel(false);
+        assertEquals(2, scheduler.size("a"));
+        assertEquals(Collections.singletonList(kept), poll("a", 25));
+    }
+
+    @Test public void fullLaneRejects() {
+        for (int i = 0; i < ApiScheduler.LaneCapacity; i++) enqueue("a", PREFETCH);
+        assertFalse(scheduler.enqueue("a", call(PREFETCH), now));
+        assertTrue(scheduler.enqueue("a", call(USER_VISIBLE), now));
+    }
+
+    private VkApiClient.Call enqueue(String accessToken, VkApiClient.Priority priority) {
+        VkApiClient.Call call = call(priority);
+        assertTrue(scheduler.enqueue(accessToken, call, now));
+        return call;
+    }
+
+    private VkApiClient.Call call(VkApiClient.Priority priority) {
+        return new VkApiClient.Call("test.method", Collections.<String, String>emptyMap(), priority, now);
+    }
+
+    private List<VkApiClient.Call> poll(String accessToken, int max) {
+        List<VkApiClient.Call> batch = new ArrayList<>();
+        scheduler.poll(accessToken, max, batch);
+        return batch;
+    }
+
+}
@@ -0,0 +1,121 @@
+package net.aquadc.vkauth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class FileTokenStoreTest {
+
+    @Rule public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File file;
+    private QueueExecutor executor;
+    private FileTokenStore store;
+
+    @Before public void setUp() {
+        file = new File(temp.getRoot(), "token");
+        executor = new QueueExecutor();
+        store = new FileTokenStore(file, executor);
+    }
+
+    @Test public void readsBackWhatWasWritten() {
+        store.write(token("first", "1"));
+        executor.runAll();
+
+        VkAccessToken read = new FileTokenStore(file, executor).readNow();
+        assertEquals("first", read.getAccessToken());
+        assertEquals("1", read.getUserId());
+    }
+
+    @Test public void coalescesWrites() {
+        store.write(token("first", "1"));
+        store.write(token("second", "2"));
+        store.write(token("third", "3"));
+        assertEquals(1, executor.size());
+        assertEquals("third", store.readNow().getAccessToken()); // not on disk yet
+
+        executor.runAll();
+        assertEquals("third", new FileTokenStore(file, executor).readNow().getAccessToken());
+    }
+
+    @Test public void writeAfterFlushIsScheduledAgain() {
+        store.write(token("first", "1"));
+        executor.runAll();
+        store.write(token("second", "2"));
+        assertEquals(1, executor.size());
+        executor.runAll();
+        assertEquals("second", new FileTokenStore(file, executor).readNow().getAccessToken());
+    }
+
+    @Test public void replacesAtomically() throws IOException {
+        store.write(token("first", "1"));
+        executor.runAll();
+        store.write(token("second", "2"));
+        executor.runAll();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        assertTrue(file.exists());
+        assertFalse(tmp.exists());
+        assertEquals("second", new FileTokenStore(file, executor).readNow().getAccessToken());
+
+        // a write torn by process death leaves only the temporary file behind
+        FileOutputStream torn = new FileOutputStream(tmp);
+        torn.write(new byte[] { 1, 2, 3 });
+        torn.close();
+        assertEquals("second", new FileTokenStore(file, executor).readNow().getAccessToken());
+    }
+
+    @Test public void nullDeletesFile() {
+        store.write(token("first", "1"));
+        executor.runAll();
+        assertTrue(file.exists());
+
+        store.write(null);
+        assertNull(store.readNow());
+        executor.runAll();
+        assertFalse(file.exists());
+        assertNull(new FileTokenStore(file, executor).readNow());
+    }
+
+    @Test public void readsAbsentFileAsNull() {
+        final VkAccessToken[] read = { token("placeholder", "0") };
+        store.read(new VkTokenStore.ReadCallback() {
+            @Override public void onTokenRead(VkAccessToken token) {
+                read[0] = token;
+            }
+        });
+        executor.runAll();
+        assertNull(read[0]);
+    }
+
+    private static VkAccessToken token(String accessToken, String userId) {
+        return VkAccessToken.create("access_token=" + accessToken + "&expires_in=0&user_id=" + userId);
+    }
+
+    private static final class QueueExecutor implements Executor {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        @Override public void execute(Runnable command) {
+            queue.add(command);
+        }
+        /*pkg*/ int size() {
+            return queue.size();
+        }
+        /*pkg*/ void runAll() {
+            Runnable r;
+            while ((r = queue.poll()) != null) r.run();
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+package net.aquadc.vkauth;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import net.aquadc.vkauth.emulator.OAuthEmulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowWebView;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives {@link VkOAuthDialogHolder}'s WebViewClient through logins against {@link OAuthEmulator}.
+ * Robolectric's WebView doesn't load pages, so the test plays its part: fetches the page, submits the form,
+ * and reports navigation to the client as WebView would.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class OAuthFlowTest {
+
+    private static final Pattern HiddenInput = Pattern.compile("<input type=\"hidden\" name=\"([^\"]+)\" value=\"([^\"]*)\"/>");
+    private static int nextAppId = 1100;
+
+    private OAuthEmulator emulator;
+    private VkApp app;
+    private ActivityController<TestActivity> controller;
+    private TestActivity activity;
+
+    @Before public void setUp() throws IOException {
+        emulator = new OAuthEmulator();
+        app = VkApp.getInstance(nextAppId++);
+        app.setOAuthHost(emulator.host());
+        controller = Robolectric.buildActivity(TestActivity.class).setup();
+        activity = controller.get();
+    }
+
+    @After public void tearDown() {
+        emulator.close();
+    }
+
+    @Test public void implicitFlowDeliversToken() throws IOException {
+        WebView webView = startLogin();
+        String redirect = submit(webView);
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, redirect));
+        idle();
+
+        assertEquals(1, activity.tokens.size());
+        assertEquals(0, activity.errors);
+        VkAccessToken token = activity.tokens.get(0);
+        assertEquals("someone@example.com", token.getEmail());
+        assertEquals(token, app.getCurrentToken());
+    }
+
+    @Test public void redirectNoticedTwiceIsDeliveredOnce() throws IOException {
+        WebView webView = startLogin();
+        String redirect = submit(webView);
+        WebViewClient client = client(webView);
+
+        // newer WebViews see the redirect as a request first, without fragment, then some of them start loading it anyway
+        WebResourceResponse response = client.shouldInterceptRequest(webView, redirect.substring(0, redirect.indexOf('#')));
+        assertNotNull(response);
+        assertEquals(-1, response.getData().read()); // answered locally with an empty page
+        idle();
+        assertEquals(0, activity.tokens.size() + activity.errors); // the request has no result in it
+        client.onPageStarted(webView, redirect, null);
+        assertTrue(client.shouldOverrideUrlLoading(webView, redirect));
+        idle();
+
+        assertEquals(1, activity.tokens.size());
+        assertEquals(0, activity.errors);
+    }
+
+    @Test public void deniedLoginIsAnError() throws IOException {
+        emulator.errorRate(1);
+        WebView webView = startLogin();
+        String redirect = submit(webView);
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, redirect));
+        idle();
+
+        assertEquals(0, activity.tokens.size());
+        assertEquals(1, activity.errors);
+    }
+
+    @Test public void deniedLoginFailsOnlyTokensItWouldHaveObtained() throws IOException {
+        emulator.errorRate(1);
+        Future<VkAccessToken> covered = app.awaitToken(EnumSet.of(VkScope.FRIENDS));
+        Future<VkAccessToken> broader = app.awaitToken(EnumSet.of(VkScope.FRIENDS, VkScope.PHOTOS));
+        WebView webView = startLogin();
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, submit(webView)));
+        idle();
+
+        assertEquals(1, activity.errors);
+        assertTrue(covered.isDone());
+        assertFalse(broader.isDone());
+        broader.cancel(false);
+    }
+
+    @Test public void codeFlowExchangesCode() throws IOException, InterruptedException {
+        app.setCodeExchangeUrl(emulator.host() + "/access_token");
+        WebView webView = startLogin();
+        assertTrue(shadowOf(webView).getLastLoadedUrl().contains("code_challenge_method=S256"));
+        String redirect = submit(webView);
+        assertTrue(redirect.contains("#code="));
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, redirect));
+
+        // exchange goes in background, then the result is posted to main thread
+        for (int i = 0; i < 100 && activity.tokens.isEmpty() && activity.errors == 0; i++) {
+            Thread.sleep(50);
+            idle();
+        }
+        assertEquals(1, activity.tokens.size());
+        assertEquals(0, activity.errors);
+    }
+
+    @Test public void pageIsShownWhenLoaded() throws IOException {
+        WebView webView = startLogin();
+        String page = shadowOf(webView).getLastLoadedUrl();
+        WebViewClient client = client(webView);
+        assertTrue(!client.shouldOverrideUrlLoading(webView, page));
+        client.onPageStarted(webView, page, null);
+        client.onPageFinished(webView, page);
+        assertEquals(WebView.VISIBLE, webView.getVisibility());
+        assertEquals(0, activity.tokens.size() + activity.errors);
+    }
+
+    @Test @Config(shadows = LoadCountingWebView.class)
+    public void dialogSurvivesActivityRecreation() throws IOException {
+        LoadCountingWebView.loads = 0;
+        WebView webView = startLogin();
+        TestActivity old = activity;
+
+        Configuration rotated = new Configuration(activity.getResources().getConfiguration());
+        rotated.orientation = rotated.orientation == Configuration.ORIENTATION_LANDSCAPE
+                ? Configuration.ORIENTATION_PORTRAIT : Configuration.ORIENTATION_LANDSCAPE;
+        activity = controller.configurationChange(rotated).get();
+        idle();
+
+        assertNotSame(old, activity);
+        assertSame(webView, dialogFragment().getHolder().webView); // retained, not re-created
+        assertEquals(1, LoadCountingWebView.loads); // the page is not loaded again
+        assertEquals(0, old.tokens.size() + old.errors + activity.tokens.size() + activity.errors); // dismissal isn't a result
+
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, submit(webView)));
+        idle();
+        assertEquals(1, activity.tokens.size());
+        assertEquals(0, old.tokens.size());
+    }
+
+    @Test public void reusedTokenReachesOnlyAddedFragments() throws IOException {
+        app.setReuseValidToken(true);
+        WebView webView = startLogin();
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, submit(webView)));
+        idle();
+        assertEquals(1, activity.tokens.size());
+
+        ResultFragment kept = new ResultFragment(), removed = new ResultFragment();
+        activity.getFragmentManager().beginTransaction().add(kept, "kept").add(removed, "removed").commit();
+        activity.getFragmentManager().executePendingTransactions();
+        ShadowLooper.pauseMainLooper(); // let the fragment go before fast path result arrives
+        app.login(kept, EnumSet.noneOf(VkScope.class), AuthenticationWay.WebView, activity.getFragmentManager());
+        app.login(removed, EnumSet.noneOf(VkScope.class), AuthenticationWay.WebView, activity.getFragmentManager());
+        activity.getFragmentManager().beginTransaction().remove(removed).commit();
+        activity.getFragmentManager().executePendingTransactions();
+        ShadowLooper.unPauseMainLooper();
+
+        assertEquals(1, kept.results);
+        assertEquals(0, removed.results);
+        assertEquals(1, activity.tokens.size()); // no dialog shown again
+    }
+
+    @Test public void anotherLoginDoesNotSettleFlight() throws IOException {
+        WebView first = startLogin();
+        ResultFragment waiter = new ResultFragment();
+        activity.getFragmentManager().beginTransaction().add(waiter, "waiter").commit();
+        activity.getFragmentManager().executePendingTransactions();
+        app.login(waiter, EnumSet.of(VkScope.FRIENDS), AuthenticationWay.WebView, activity.getFragmentManager());
+        app.login(activity, EnumSet.of(VkScope.PHOTOS), AuthenticationWay.WebView, activity.getFragmentManager());
+        activity.getFragmentManager().executePendingTransactions();
+        List<VkOAuthDialogHolder.NativeFragment> dialogs = dialogFragments();
+        assertEquals(2, dialogs.size()); // the waiter joined the first one, the last one is on its own
+        WebView second = dialogs.get(0).getHolder().webView == first ? dialogs.get(1).getHolder().webView : dialogs.get(0).getHolder().webView;
+
+        assertTrue(client(second).shouldOverrideUrlLoading(second, submit(second)));
+        idle();
+        assertEquals(1, activity.tokens.size());
+        assertEquals(0, waiter.results); // that token may lack permissions the waiter asked for
+
+        assertTrue(client(first).shouldOverrideUrlLoading(first, submit(first)));
+        idle();
+        assertEquals(2, activity.tokens.size());
+        assertEquals(1, waiter.results);
+    }
+
+    @Test public void destroyedActivityGetsNothing() throws IOException {
+        WebView webView = startLogin();
+        ActivityController<TestActivity> gone = Robolectric.buildActivity(TestActivity.class).setup();
+        app.login(gone.get(), EnumSet.of(VkScope.FRIENDS), AuthenticationWay.WebView, gone.get().getFragmentManager());
+        assertEquals(1, dialogFragments().size()); // joined
+        gone.pause().stop().destroy();
+
+        assertTrue(client(webView).shouldOverrideUrlLoading(webView, submit(webView)));
+        idle();
+        assertEquals(1, activity.tokens.size());
+        assertEquals(0, gone.get().tokens.size() + gone.get().errors);
+    }
+
+    private WebView startLogin() {
+        app.login(activity, EnumSet.of(VkScope.FRIENDS, VkScope.EMAIL), AuthenticationWay.WebView, activity.getFragmentManager());
+        activity.getFragmentManager().executePendingTransactions();
+        WebView webView = dialogFragment().getHolder().webView;
+        String url = shadowOf(webView).getLastLoadedUrl();
+        assertTrue(url, url.startsWith(emulator.host() + "/authorize?"));
+        return webView;
+    }
+
+    private VkOAuthDialogHolder.NativeFragment dialogFragment() {
+        List<VkOAuthDialogHolder.NativeFragment> dialogs = dialogFragments();
+        if (dialogs.isEmpty()) throw new AssertionError("no OAuth dialog");
+        return dialogs.get(0);
+    }
+
+    private List<VkOAuthDialogHolder.NativeFragment> dialogFragments() {
+        List<VkOAuthDialogHolder.NativeFragment> dialogs = new ArrayList<>();
+        for (Fragment fragment : activity.getFragmentManager().getFragments()) {
+            if (fragment instanceof VkOAuthDialogHolder.NativeFragment) dialogs.add((VkOAuthDialogHolder.NativeFragment) fragment);
+        }
+        return dialogs;
+    }
+
+    private static WebViewClient client(WebView webView) {
+        return shadowOf(webView).getWebViewClient();
+    }
+
+    /**
+     * Loads the page WebView was asked to load, fills and submits its form.
+     * @return redirect URL
+     */
+    private String submit(WebView webView) throws IOException {
+        String page = read(new URL(shadowOf(webView).getLastLoadedUrl()).openConnection().getInputStream());
+        StringBuilder form = new StringBuilder("email=").append(URLEncoder.encode("someone@example.com", "UTF-8")).append("&pass=secret");
+        Matcher input = HiddenInput.matcher(page);
+        while (input.find()) {
+            String value = input.group(2).replace("&quot;", "\"").replace("&amp;", "&");
+            form.append('&').append(input.group(1)).append('=').append(URLEncoder.encode(value, "UTF-8"));
+        }
+
+        HttpURLConnection submit = (HttpURLConnection) new URL(emulator.host() + "/authorize").openConnection();
+        submit.setInstanceFollowRedirects(false);
+        submit.setRequestMethod("POST");
+        submit.setDoOutput(true);
+        submit.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream out = submit.getOutputStream();
+        out.write(form.toString().getBytes("UTF-8"));
+        out.close();
+        assertEquals(302, submit.getResponseCode());
+        String location = submit.getHeaderField("Location");
+        submit.disconnect();
+        assertTrue(location, location.startsWith(emulator.host() + VkOAuthDialogHolder.REDIRECT_PATH + '#'));
+        return location;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = in.read(buf)) > 0) out.write(buf, 0, read);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static void idle() {
+        ShadowLooper.idleMainLooper();
+    }
+
+    @Implements(WebView.class)
+    public static final class LoadCountingWebView extends ShadowWebView {
+        /*pkg*/ static int loads;
+        @Implementation @Override public void loadUrl(String url) {
+            loads++;
+            super.loadUrl(url);
+        }
+    }
+
+    public static final class ResultFragment extends Fragment {
+        /*pkg*/ int results;
+        @Override public void onActivityResult(int requestCode, int resultCode, Intent data) {
+            if (requestCode == VkApp.RcVkAuth && resultCode == Activity.RESULT_OK) results++;
+        }
+    }
+
+    public static final class TestActivity extends Activity implements VkApp.VkAuthCallbackProvider {
+        /*pkg*/ final List<VkAccessToken> tokens = new ArrayList<>();
+        /*pkg*/ int errors;
+        @Override public VkApp.VkAuthCallback getVkAuthCallback() {
+            return new VkApp.VkAuthCallback() {
+                @Override public void onResult(VkAccessToken token) {
+                    tokens.add(token);
+                }
+                @Override public void onError() {
+                    errors++;
+                }
+            };
+        }
+    }
+
+}
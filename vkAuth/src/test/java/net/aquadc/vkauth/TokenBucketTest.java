@@ -0,0 +1,55 @@
+package net.aquadc.vkauth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class TokenBucketTest {
+
+    @Test public void burstIsAvailableAtOnce() {
+        TokenBucket bucket = new TokenBucket(3, 3, 1000);
+        assertEquals(0, bucket.tryAcquire(1000));
+        assertEquals(0, bucket.tryAcquire(1000));
+        assertEquals(0, bucket.tryAcquire(1000));
+        assertEquals(334, bucket.tryAcquire(1000)); // a third of a second, rounded up
+    }
+
+    @Test public void refillsOverTime() {
+        TokenBucket bucket = new TokenBucket(3, 1, 0);
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(334, bucket.tryAcquire(0));
+        assertEquals(134, bucket.tryAcquire(200));
+        assertEquals(0, bucket.tryAcquire(334));
+        assertEquals(334, bucket.tryAcquire(334));
+    }
+
+    @Test public void idleTimeDoesNotExceedBurst() {
+        TokenBucket bucket = new TokenBucket(3, 2, 0);
+        assertEquals(0, bucket.tryAcquire(60_000));
+        assertEquals(0, bucket.tryAcquire(60_000));
+        assertEquals(334, bucket.tryAcquire(60_000));
+    }
+
+    @Test public void backOffDelaysNextPermit() {
+        TokenBucket bucket = new TokenBucket(3, 3, 0);
+        bucket.backOff(0, 1000);
+        assertEquals(1000, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(1000));
+        assertEquals(334, bucket.tryAcquire(1000));
+    }
+
+    @Test public void backOffDoesNotShortenWait() {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        assertEquals(0, bucket.tryAcquire(0));
+        bucket.backOff(0, 100);
+        assertEquals(1000, bucket.tryAcquire(0));
+    }
+
+    @Test public void clockGoingBackDoesNotRefill() {
+        TokenBucket bucket = new TokenBucket(1, 1, 10_000);
+        assertEquals(0, bucket.tryAcquire(10_000));
+        assertEquals(1000, bucket.tryAcquire(5_000));
+        assertEquals(500, bucket.tryAcquire(10_500));
+    }
+
+}
@@ -0,0 +1,47 @@
+package net.aquadc.vkauth;
+
+import org.junit.Test;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class TokenFutureTest {
+
+    private final CopyOnWriteArrayList<TokenFuture> registry = new CopyOnWriteArrayList<>();
+
+    @Test public void timedOutFutureStaysPending() throws InterruptedException, ExecutionException, TimeoutException {
+        TokenFuture future = register();
+        try {
+            future.get(1, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+        assertFalse(future.isDone());
+        assertTrue(registry.contains(future));
+
+        future.complete(null); // a late login still reaches it
+        assertTrue(future.isDone());
+        assertNull(future.get(1, TimeUnit.MILLISECONDS));
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test public void settledFutureLeavesRegistry() {
+        register().fail();
+        register().cancel(false);
+        assertTrue(registry.isEmpty());
+    }
+
+    private TokenFuture register() {
+        TokenFuture future = new TokenFuture(registry, VkScopeSet.of(VkScope.FRIENDS));
+        registry.add(future);
+        return future;
+    }
+
+}
@@ -0,0 +1,182 @@
+package net.aquadc.vkauth;
+
+import net.aquadc.vkauth.emulator.ApiEmulator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Batching of {@link VkApiClient} calls into {@code execute}, against {@link ApiEmulator}.
+ * Robolectric provides org.json and a main thread for {@link VkApp}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class VkApiClientTest {
+
+    private static int nextAppId = 1200;
+
+    private ApiEmulator emulator;
+    private VkApiClient client;
+
+    @Before public void setUp() throws IOException {
+        VkClock.setDefault(new VkClock() { // Robolectric's SystemClock stands still, the client's thread needs a real one
+            @Override public long elapsedRealtime() {
+                return System.nanoTime() / 1_000_000;
+            }
+            @Override public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+        });
+        emulator = new ApiEmulator();
+        VkApp app = VkApp.getInstance(nextAppId++);
+        app.setTokenStore(new VkTokenStore() {
+            @Override public void read(ReadCallback callback) {
+                callback.onTokenRead(VkAccessToken.create("access_token=secret&expires_in=0&user_id=1"));
+            }
+            @Override public void write(VkAccessToken token) {
+            }
+        });
+        assertEquals("secret", app.getCurrentToken().getAccessToken());
+        client = new VkApiClient(app);
+        client.setEndpoint(emulator.endpoint());
+    }
+
+    @After public void tearDown() {
+        emulator.close();
+        VkClock.setDefault(VkClock.SYSTEM);
+    }
+
+    @Test public void scriptCallsMethodsInOrder() {
+        String script = VkApiClient.script(Arrays.asList(
+                call("users.get", Collections.singletonMap("user_ids", "1")),
+                call("friends.get", Collections.<String, String>emptyMap())
+        ));
+        assertEquals("return [API.users.get({\"user_ids\":\"1\"}),API.friends.get({})];", script);
+    }
+
+    @Test public void demultiplexMatchesErrorsToFalseResults() throws JSONException {
+        List<VkApiClient.Call> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++) batch.add(call("test.method", Collections.<String, String>emptyMap()));
+        VkApiClient.demultiplex(batch, new JSONObject("{\"response\":[1,false,3,false],\"execute_errors\":["
+                + "{\"method\":\"test.method\",\"error_code\":100,\"error_msg\":\"first\"},"
+                + "{\"method\":\"test.method\",\"error_code\":15,\"error_msg\":\"second\"}]}"));
+
+        assertEquals(1, result(batch.get(0)));
+        assertEquals(100, error(batch.get(1)).getCode());
+        assertEquals(3, result(batch.get(2)));
+        assertEquals(15, error(batch.get(3)).getCode());
+    }
+
+    @Test public void demultiplexMatchesErrorsByMethod() throws JSONException {
+        List<VkApiClient.Call> batch = Arrays.asList(
+                call("groups.isMember", Collections.<String, String>emptyMap()),
+                call("test.fail", Collections.<String, String>emptyMap())
+        );
+        VkApiClient.demultiplex(batch, new JSONObject("{\"response\":[false,false],\"execute_errors\":["
+                + "{\"method\":\"test.fail\",\"error_code\":100,\"error_msg\":\"failed\"}]}"));
+
+        assertEquals(Boolean.FALSE, result(batch.get(0))); // legitimate false
+        assertEquals(100, error(batch.get(1)).getCode());
+    }
+
+    @Test public void falseWithoutErrorIsAResult() throws JSONException {
+        List<VkApiClient.Call> batch = Collections.singletonList(call("test.method", Collections.<String, String>emptyMap()));
+        VkApiClient.demultiplex(batch, new JSONObject("{\"response\":[false]}"));
+        assertEquals(Boolean.FALSE, result(batch.get(0)));
+    }
+
+    @Test public void burstGoesInOneExecute() throws Exception {
+        client.setBatchWindow(200);
+        List<Future<Object>> calls = new ArrayList<>();
+        for (int i = 0; i < 5; i++) calls.add(client.call("test.method" + (char) ('a' + i), null));
+        Future<Object> failing = client.call("test.fail", null);
+
+        for (int i = 0; i < 5; i++) {
+            JSONObject response = (JSONObject) calls.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals("test.method" + (char) ('a' + i), response.getString("method"));
+        }
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(100, ((VkApiException) e.getCause()).getCode());
+        }
+        assertEquals(1, emulator.requestCount());
+        assertEquals(6, emulator.callCount());
+    }
+
+    @Test public void singleCallIsNotWrapped() throws Exception {
+        JSONObject response = (JSONObject) client.call("users.get", Collections.singletonMap("user_ids", "1")).get(5, TimeUnit.SECONDS);
+        assertEquals("users.get", response.getString("method"));
+        assertEquals(1, emulator.requestCount());
+        assertEquals(1, emulator.callCount());
+    }
+
+    @Test public void fullBatchDoesNotWait() throws Exception {
+        client.setBatchWindow(60_000);
+        List<Future<Object>> calls = new ArrayList<>();
+        for (int i = 0; i < 25; i++) calls.add(client.call("test.method", null));
+        for (Future<Object> call : calls) call.get(5, TimeUnit.SECONDS);
+        assertEquals(1, emulator.requestCount());
+        assertEquals(25, emulator.callCount());
+    }
+
+    @Test public void tooManyRequestsIsRetried() throws Exception {
+        emulator.rateLimit(1);
+        client.setBatchWindow(0);
+        client.setRateLimit(10, 10); // faster than the server allows
+        client.call("users.get", null).get(5, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        JSONObject response = (JSONObject) client.call("friends.get", null).get(5, TimeUnit.SECONDS);
+        assertEquals("friends.get", response.getString("method"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1)); // waited before retrying
+        assertEquals(3, emulator.requestCount()); // the second one was rejected with error 6 once
+        assertEquals(2, emulator.callCount());
+    }
+
+    private static VkApiClient.Call call(String method, Map<String, String> params) {
+        return new VkApiClient.Call(method, params, VkApiClient.Priority.USER_VISIBLE, 0);
+    }
+
+    private static Object result(VkApiClient.Call call) {
+        assertTrue(call.isDone());
+        try {
+            return call.get(0, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static VkApiException error(VkApiClient.Call call) {
+        assertTrue(call.isDone());
+        try {
+            call.get(0, TimeUnit.MILLISECONDS);
+            throw new AssertionError("call succeeded");
+        } catch (ExecutionException e) {
+            return (VkApiException) e.getCause();
+        } catch (InterruptedException | TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package net.aquadc.vkauth.emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static net.aquadc.vkauth.emulator.OAuthEmulator.parse;
+
+/**
+ * Minimal local stand-in for VK API.
+ * <ul>
+ *     <li>{@code POST /method/execute} runs {@code API.<method>(...)} calls found in {@code code}, returns an array of results</li>
+ *     <li>{@code POST /method/<method>} runs a single call</li>
+ * </ul>
+ * Every method returns {@code {"method":"<method>"}}, except {@code test.fail} which fails with error 100.
+ * Requests without {@code access_token} fail with error 5.
+ * Point a VkApiClient to it with {@code setEndpoint(emulator.endpoint())}.
+ */
+public final class ApiEmulator implements Closeable {
+
+    private static final Pattern Call = Pattern.compile("API\\.([A-Za-z]+\\.[A-Za-z]+)\\(");
+
+    private final LocalServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private volatile long latencyMillis;
+    private volatile int requestsPerSecond;
+    private final Object rateLock = new Object();
+    private long windowStart;
+    private int windowRequests;
+
+    public ApiEmulator() throws IOException {
+        server = new LocalServer().handle("/method/", new LocalServer.Handler() {
+            @Override public void handle(LocalServer.Exchange exchange) throws IOException {
+                method(exchange);
+            }
+        }).start();
+    }
+
+    /**
+     * @return endpoint URL with trailing slash, like {@code http://127.0.0.1:12345/method/}
+     */
+    public String endpoint() {
+        return server.origin() + "/method/";
+    }
+
+    /**
+     * Delays every response.
+     */
+    public ApiEmulator latency(long millis) {
+        latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Makes requests above {@code perSecond} within a second fail with error 6, like VK does. Zero means no limit.
+     */
+    public ApiEmulator rateLimit(int perSecond) {
+        requestsPerSecond = perSecond;
+        return this;
+    }
+
+    /**
+     * @return number of HTTP requests served
+     */
+    public int requestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of method calls served, including those inside {@code execute}
+     */
+    public int callCount() {
+        return calls.get();
+    }
+
+    private void method(LocalServer.Exchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!"POST".equals(exchange.method)) {
+            exchange.respond(405, "text/plain", "Method Not Allowed");
+            return;
+        }
+
+        Map<String, String> params = parse(exchange.body());
+        if (params.get("access_token") == null) {
+            exchange.respond(200, "application/json", error(5, "User authorization failed: no access_token passed."));
+            return;
+        }
+        if (!withinRateLimit()) {
+            exchange.respond(200, "application/json", error(6, "Too many requests per second"));
+            return;
+        }
+
+        String method = exchange.path.substring("/method/".length());
+        if (!"execute".equals(method)) {
+            calls.incrementAndGet();
+            exchange.respond(200, "application/json",
+                    "test.fail".equals(method) ? error(100, "One of the parameters specified was missing or invalid") : "{\"response\":" + result(method) + '}');
+            return;
+        }
+
+        String code = params.get("code");
+        List<String> methods = new ArrayList<>();
+        Matcher matcher = Call.matcher(code == null ? "" : code);
+        while (matcher.find()) methods.add(matcher.group(1));
+        calls.addAndGet(methods.size());
+
+        StringBuilder responses = new StringBuilder("[");
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < methods.size(); i++) {
+            if (i > 0) responses.append(',');
+            String m = methods.get(i);
+            if ("test.fail".equals(m)) {
+                responses.append("false");
+                if (errors.length() > 0) errors.append(',');
+                errors.append("{\"method\":\"").append(m).append("\",\"error_code\":100,\"error_msg\":\"One of the parameters specified was missing or invalid\"}");
+            } else {
+                responses.append(result(m));
+            }
+        }
+        responses.append(']');
+        exchange.respond(200, "application/json", "{\"response\":" + responses +
+                (errors.length() == 0 ? "" : ",\"execute_errors\":[" + errors + ']') + '}');
+    }
+
+    private boolean withinRateLimit() {
+        int limit = requestsPerSecond;
+        if (limit <= 0) return true;
+        synchronized (rateLock) {
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                windowStart = now;
+                windowRequests = 0;
+            }
+            return ++windowRequests <= limit;
+        }
+    }
+
+    private static String result(String method) {
+        return "{\"method\":\"" + method + "\"}";
+    }
+
+    private static String error(int code, String message) {
+        return "{\"error\":{\"error_code\":" + code + ",\"error_msg\":\"" + message + "\"}}";
+    }
+
+    @Override public void close() {
+        server.close();
+    }
+
+}
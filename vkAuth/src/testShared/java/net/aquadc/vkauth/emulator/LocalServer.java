@@ -0,0 +1,214 @@
+package net.aquadc.vkauth.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tiny HTTP/1.1 server for emulators: one request per connection, bodies with Content-Length only.
+ * Unlike com.sun.net.httpserver, works both on a JVM and on Android, so the same emulators serve
+ * Robolectric tests, benchmarks, and instrumented tests.
+ */
+/*pkg*/ final class LocalServer implements Closeable {
+
+    /*pkg*/ static final Charset Utf8 = Charset.forName("UTF-8");
+
+    /*pkg*/ interface Handler {
+        void handle(Exchange exchange) throws IOException;
+    }
+
+    private final ServerSocket socket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Handler> handlers = new LinkedHashMap<>(); // path prefix -> handler
+    private final AtomicReference<IOException> failure = new AtomicReference<>(); // the first one
+
+    /*pkg*/ LocalServer() throws IOException {
+        socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Routes requests whose path starts with {@code prefix} to {@code handler}. Call before {@link #start()}.
+     */
+    /*pkg*/ LocalServer handle(String prefix, Handler handler) {
+        handlers.put(prefix, handler);
+        return this;
+    }
+
+    /*pkg*/ LocalServer start() {
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    while (true) {
+                        final Socket connection = socket.accept();
+                        executor.execute(new Runnable() {
+                            @Override public void run() {
+                                serve(connection);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return scheme, host and port, like {@code http://127.0.0.1:12345}
+     */
+    /*pkg*/ String origin() {
+        return "http://" + socket.getInetAddress().getHostAddress() + ':' + socket.getLocalPort();
+    }
+
+    private void serve(Socket connection) {
+        try {
+            try {
+                Exchange exchange = Exchange.read(connection.getInputStream(), connection.getOutputStream());
+                if (exchange == null) return;
+                Handler handler = null;
+                for (Map.Entry<String, Handler> e : handlers.entrySet()) {
+                    if (exchange.path.startsWith(e.getKey())) {
+                        handler = e.getValue();
+                        break;
+                    }
+                }
+                if (handler == null) exchange.respond(404, "text/plain", "Not Found");
+                else handler.handle(exchange);
+                if (!exchange.responded) exchange.respond(500, "text/plain", "No response");
+            } finally {
+                connection.close();
+            }
+        } catch (SocketException e) {
+            // client has gone
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Stops serving.
+     * @throws IllegalStateException if some request has failed, so the test using this server fails too
+     */
+    @Override public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        executor.shutdownNow();
+        IOException e = failure.get();
+        if (e != null) throw new IllegalStateException("request handling failed", e);
+    }
+
+    /*pkg*/ static final class Exchange {
+        /*pkg*/ final String method;
+        /*pkg*/ final String path;
+        /*pkg*/ final String rawQuery;
+        private final Map<String, String> headers; // lower-case names
+        private final byte[] body;
+        private final OutputStream output;
+        /*pkg*/ boolean responded;
+
+        private Exchange(String method, String path, String rawQuery, Map<String, String> headers, byte[] body, OutputStream output) {
+            this.method = method;
+            this.path = path;
+            this.rawQuery = rawQuery;
+            this.headers = headers;
+            this.body = body;
+            this.output = output;
+        }
+
+        /*pkg*/ static Exchange read(InputStream input, OutputStream output) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+            String requestLine = line(in);
+            if (requestLine == null || requestLine.isEmpty()) return null;
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) return null;
+
+            Map<String, String> headers = new HashMap<>();
+            String header;
+            while ((header = line(in)) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0) headers.put(header.substring(0, colon).trim().toLowerCase(Locale.US), header.substring(colon + 1).trim());
+            }
+            String length = headers.get("content-length");
+            byte[] body = new byte[length == null ? 0 : Integer.parseInt(length)];
+            in.readFully(body);
+
+            String target = parts[1];
+            int question = target.indexOf('?');
+            return new Exchange(
+                    parts[0],
+                    question < 0 ? target : target.substring(0, question),
+                    question < 0 ? null : target.substring(question + 1),
+                    headers, body, output
+            );
+        }
+
+        private static String line(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') line.write(b);
+            }
+            return b < 0 && line.size() == 0 ? null : new String(line.toByteArray(), Utf8);
+        }
+
+        /*pkg*/ String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        /*pkg*/ String body() {
+            return new String(body, Utf8);
+        }
+
+        /*pkg*/ void respond(int code, String contentType, String body) throws IOException {
+            respond(code, body.getBytes(Utf8), "Content-Type", contentType + "; charset=utf-8");
+        }
+
+        /*pkg*/ void redirect(String location) throws IOException {
+            respond(302, new byte[0], "Location", location);
+        }
+
+        private void respond(int code, byte[] body, String headerName, String headerValue) throws IOException {
+            if (responded) throw new IllegalStateException("already responded");
+            responded = true;
+            String head = "HTTP/1.1 " + code + ' ' + reason(code) + "\r\n"
+                    + headerName + ": " + headerValue + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            output.write(head.getBytes(Utf8));
+            output.write(body);
+            output.flush();
+        }
+
+        private static String reason(int code) {
+            switch (code) {
+                case 200: return "OK";
+                case 302: return "Found";
+                case 400: return "Bad Request";
+                case 404: return "Not Found";
+                case 405: return "Method Not Allowed";
+                case 500: return "Internal Server Error";
+                default: return "Status";
+            }
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+package net.aquadc.vkauth.emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal local stand-in for VK OAuth server, implicit and authorization code flows.
+ * <ul>
+ *     <li>{@code GET /authorize} serves a login form</li>
+ *     <li>{@code POST /authorize} redirects to {@code redirect_uri#access_token=...}</li>
+ *     <li>{@code POST /access_token} exchanges a code for a token, verifying PKCE S256 challenge</li>
+ *     <li>{@code GET /blank.html} serves an empty page</li>
+ * </ul>
+ * Point a VkApp to it with {@code setOAuthHost(emulator.host())}.
+ */
+public final class OAuthEmulator implements Closeable {
+
+    private static final Random Rng = new Random();
+
+    private final LocalServer server;
+    private final AtomicInteger userIds = new AtomicInteger(1);
+    private final ConcurrentHashMap<String, String> challenges = new ConcurrentHashMap<>(); // code -> code_challenge
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double serverErrorRate;
+
+    public OAuthEmulator() throws IOException {
+        server = new LocalServer().handle("/authorize", new LocalServer.Handler() {
+            @Override public void handle(LocalServer.Exchange exchange) throws IOException {
+                authorize(exchange);
+            }
+        }).handle("/access_token", new LocalServer.Handler() {
+            @Override public void handle(LocalServer.Exchange exchange) throws IOException {
+                accessToken(exchange);
+            }
+        }).handle("/blank.html", new LocalServer.Handler() {
+            @Override public void handle(LocalServer.Exchange exchange) throws IOException {
+                exchange.respond(200, "text/html", "");
+            }
+        }).start();
+    }
+
+    /**
+     * @return scheme, host and port of this server, like {@code http://127.0.0.1:12345}
+     */
+    public String host() {
+        return server.origin();
+    }
+
+    /**
+     * Delays every response.
+     */
+    public OAuthEmulator latency(long millis) {
+        latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Makes a fraction of logins end with {@code #error=access_denied} redirect.
+     */
+    public OAuthEmulator errorRate(double rate) {
+        errorRate = rate;
+        return this;
+    }
+
+    /**
+     * Makes a fraction of requests fail with HTTP 500.
+     */
+    public OAuthEmulator serverErrorRate(double rate) {
+        serverErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the request was failed on purpose and must not be processed
+     */
+    private boolean delayOrFail(LocalServer.Exchange exchange) throws IOException {
+        if (latencyMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (serverErrorRate > 0 && Rng.nextDouble() < serverErrorRate) {
+            exchange.respond(500, "text/plain", "Internal Server Error");
+            return true;
+        }
+        return false;
+    }
+
+    private void authorize(LocalServer.Exchange exchange) throws IOException {
+        if (delayOrFail(exchange)) return;
+
+        if ("GET".equals(exchange.method)) {
+            Map<String, String> query = parse(exchange.rawQuery);
+            StringBuilder form = new StringBuilder(512)
+                    .append("<!DOCTYPE html><html><body><form method=\"POST\" action=\"/authorize\">")
+                    .append("<input name=\"email\" type=\"text\"/><input name=\"pass\" type=\"password\"/>");
+            for (String key : new String[] { "client_id", "scope", "redirect_uri", "v", "response_type", "state", "code_challenge", "code_challenge_method" }) {
+                String value = query.get(key);
+                if (value != null) {
+                    form.append("<input type=\"hidden\" name=\"").append(key).append("\" value=\"")
+                            .append(value.replace("&", "&amp;").replace("\"", "&quot;")).append("\"/>");
+                }
+            }
+            form.append("<input type=\"submit\"/></form></body></html>");
+            exchange.respond(200, "text/html", form.toString());
+        } else if ("POST".equals(exchange.method)) {
+            Map<String, String> params = parse(exchange.body());
+            String redirectUri = params.get("redirect_uri");
+            if (redirectUri == null) {
+                exchange.respond(400, "text/plain", "redirect_uri is required");
+                return;
+            }
+
+            String fragment;
+            if (errorRate > 0 && Rng.nextDouble() < errorRate) {
+                fragment = "error=access_denied&error_reason=user_denied&error_description=User%20denied%20your%20request";
+            } else if ("code".equals(params.get("response_type"))) {
+                String challenge = params.get("code_challenge");
+                if (challenge == null || !"S256".equals(params.get("code_challenge_method"))) {
+                    exchange.respond(400, "text/plain", "S256 code_challenge is required");
+                    return;
+                }
+                String code = randomHex();
+                challenges.put(code, challenge);
+                fragment = "code=" + code;
+                String state = params.get("state");
+                if (state != null) fragment += "&state=" + encode(state);
+            } else {
+                StringBuilder sb = new StringBuilder(128)
+                        .append("access_token=").append(randomHex())
+                        .append("&expires_in=86400&user_id=").append(userIds.getAndIncrement());
+                String email = params.get("email");
+                if (email != null && !email.isEmpty()) sb.append("&email=").append(encode(email));
+                String state = params.get("state");
+                if (state != null) sb.append("&state=").append(encode(state));
+                fragment = sb.toString();
+            }
+
+            exchange.redirect(redirectUri + '#' + fragment);
+        } else {
+            exchange.respond(405, "text/plain", "Method Not Allowed");
+        }
+    }
+
+    private void accessToken(LocalServer.Exchange exchange) throws IOException {
+        if (delayOrFail(exchange)) return;
+        if (!"POST".equals(exchange.method)) {
+            exchange.respond(405, "text/plain", "Method Not Allowed");
+            return;
+        }
+
+        Map<String, String> params = parse(exchange.body());
+        String code = params.get("code");
+        String verifier = params.get("code_verifier");
+        String challenge = code == null ? null : challenges.remove(code); // codes are single-use
+        if (challenge == null || verifier == null || !challenge.equals(s256(verifier))) {
+            exchange.respond(400, "application/json", "{\"error\":\"invalid_grant\"}");
+            return;
+        }
+        exchange.respond(200, "application/json",
+                "{\"access_token\":\"" + randomHex() + "\",\"expires_in\":86400,\"user_id\":" + userIds.getAndIncrement() + "}");
+    }
+
+    private static String s256(String verifier) {
+        try {
+            return base64Url(MessageDigest.getInstance("SHA-256").digest(verifier.getBytes(LocalServer.Utf8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Unpadded base64url; java.util.Base64 is not available on older Androids, android.util.Base64 is not available on a JVM.
+     */
+    private static String base64Url(byte[] bytes) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        StringBuilder sb = new StringBuilder((bytes.length * 4 + 2) / 3);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xFF) << 16
+                    | (i + 1 < bytes.length ? (bytes[i + 1] & 0xFF) << 8 : 0)
+                    | (i + 2 < bytes.length ? bytes[i + 2] & 0xFF : 0);
+            int chars = Math.min(4, (bytes.length - i) * 4 / 3 + 1);
+            for (int c = 0; c < chars; c++) sb.append(alphabet.charAt(n >> (18 - 6 * c) & 63));
+        }
+        return sb.toString();
+    }
+
+    private static String randomHex() {
+        return Long.toHexString(Rng.nextLong()) + Long.toHexString(Rng.nextLong());
+    }
+
+    /*pkg*/ static Map<String, String> parse(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+    @Override public void close() {
+        server.close();
+    }
+
+}
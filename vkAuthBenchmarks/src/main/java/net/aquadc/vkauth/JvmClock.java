@@ -0,0 +1,20 @@
+package net.aquadc.vkauth;
+
+/**
+ * {@link VkClock#SYSTEM} relies on android.os.SystemClock which is unavailable on a plain JVM.
+ */
+/*pkg*/ final class JvmClock extends VkClock {
+
+    /*pkg*/ static final JvmClock Instance = new JvmClock();
+
+    private JvmClock() {}
+
+    @Override public long elapsedRealtime() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    @Override public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+}
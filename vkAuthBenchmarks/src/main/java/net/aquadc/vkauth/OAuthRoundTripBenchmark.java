@@ -0,0 +1,79 @@
+package net.aquadc.vkauth;
+
+import net.aquadc.vkauth.emulator.OAuthEmulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network part of WebView logins against a local {@link OAuthEmulator}:
+ * load authorize page, submit the form, catch the redirect, parse the token.
+ * Handling of the redirect by OAuth dialog's WebViewClient is covered by {@code OAuthFlowTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OAuthRoundTripBenchmark {
+
+    @Param({ "0", "20" })
+    public long latencyMillis;
+
+    private OAuthEmulator emulator;
+    private String authorizeUrl;
+    private byte[] form;
+
+    @Setup public void setUp() throws IOException {
+        VkClock.setDefault(JvmClock.Instance);
+        emulator = new OAuthEmulator().latency(latencyMillis);
+        String host = emulator.host();
+        String redirectUri = URLEncoder.encode(host + "/blank.html", "UTF-8");
+        authorizeUrl = host + "/authorize?client_id=1&scope=friends%2Cemail&redirect_uri=" + redirectUri +
+                "&display=mobile&v=5.62&response_type=token&revoke=1";
+        form = ("email=some.user%40example.com&pass=secret&client_id=1&scope=friends%2Cemail&redirect_uri=" + redirectUri)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown public void tearDown() {
+        emulator.close();
+    }
+
+    @Benchmark public VkAccessToken login() throws IOException {
+        HttpURLConnection page = (HttpURLConnection) new URL(authorizeUrl).openConnection();
+        drain(page);
+
+        HttpURLConnection submit = (HttpURLConnection) new URL(authorizeUrl).openConnection();
+        submit.setInstanceFollowRedirects(false);
+        submit.setRequestMethod("POST");
+        submit.setDoOutput(true);
+        submit.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream out = submit.getOutputStream();
+        out.write(form);
+        out.close();
+        if (submit.getResponseCode() != 302) throw new IOException("unexpected response " + submit.getResponseCode());
+        String location = submit.getHeaderField("Location");
+        drain(submit);
+
+        // token parsing step of VkApp.onActivityResult
+        return VkAccessToken.create(location.substring(location.indexOf('#') + 1));
+    }
+
+    private static void drain(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) return;
+        byte[] buf = new byte[1024];
+        while (in.read(buf) >= 0);
+        in.close(); // keep-alive connection goes back to the pool
+    }
+
+}
@@ -0,0 +1,40 @@
+package net.aquadc.vkauth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryStringBenchmark {
+
+    // a typical fragment of OAuth redirect URL
+    private static final String Fragment =
+            "access_token=533bacf01e11f55b536a565b57531ad114461ae8736d6506a3" +
+                    "&expires_in=86400&user_id=8492&email=some.user%40example.com&state=123456";
+
+    private Map<String, String> params;
+
+    @Setup public void setUp() {
+        VkClock.setDefault(JvmClock.Instance);
+        params = Util.explodeQueryString(Fragment);
+    }
+
+    @Benchmark public Map<String, String> explodeQueryString() {
+        return Util.explodeQueryString(Fragment);
+    }
+
+    @Benchmark public VkAccessToken createFromQueryString() {
+        return VkAccessToken.create(Fragment);
+    }
+
+    @Benchmark public VkAccessToken createFromMap() {
+        return VkAccessToken.create(params);
+    }
+
+}
@@ -0,0 +1,27 @@
+package net.aquadc.vkauth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    private final byte[] sha1 = new byte[20]; // size of a certificate fingerprint
+
+    @Setup public void setUp() {
+        for (int i = 0; i < sha1.length; i++) {
+            sha1[i] = (byte) (i * 37);
+        }
+    }
+
+    @Benchmark public String toHex() {
+        return Util.toHex(sha1);
+    }
+
+}
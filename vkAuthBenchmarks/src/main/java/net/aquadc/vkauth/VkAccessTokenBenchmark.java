@@ -0,0 +1,52 @@
+package net.aquadc.vkauth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VkAccessTokenBenchmark {
+
+    private VkAccessToken old;
+    private VkAccessToken fresh;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+
+    @Setup public void setUp() {
+        VkClock.setDefault(JvmClock.Instance);
+        old = VkAccessToken.create(
+                "access_token=533bacf01e11f55b536a565b57531ad114461ae8736d6506a3&expires_in=86400&user_id=8492" +
+                        "&email=some.user%40example.com&scope=friends,photos,wall,offline");
+        fresh = VkAccessToken.create(
+                "access_token=7a6fa4dff77a228eeda56603b8f53806c883f011c40b72630b&expires_in=86400&user_id=8492");
+        bytes = old.toByteArray();
+        buffer = ByteBuffer.allocate(256);
+    }
+
+    @Benchmark public VkAccessToken overriddenBy() {
+        return old.overriddenBy(fresh);
+    }
+
+    @Benchmark public byte[] encode() {
+        return old.toByteArray();
+    }
+
+    @Benchmark public VkAccessToken decode() throws IOException {
+        return VkAccessToken.fromByteArray(bytes);
+    }
+
+    @Benchmark public VkAccessToken byteBufferRoundTrip() throws IOException {
+        buffer.clear();
+        old.writeTo(buffer);
+        buffer.flip();
+        return VkAccessToken.readFrom(buffer);
+    }
+
+}
@@ -0,0 +1,57 @@
+package net.aquadc.vkauth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VkScopeBenchmark {
+
+    private static final String Joined = "friends,photos,wall,groups,offline,email";
+
+    @State(Scope.Benchmark)
+    public static class Name {
+        @Param({ "notify", "direct" }) // first and last
+        public String scopeName;
+    }
+
+    private VkScopeSet set;
+    private Set<VkScope> enumSet;
+
+    @Setup public void setUp() {
+        set = VkScopeSet.parse(Joined);
+        enumSet = EnumSet.copyOf(set);
+    }
+
+    @Benchmark public VkScope byScopeName(Name name) {
+        return VkScope.byScopeName(name.scopeName);
+    }
+
+    @Benchmark public Set<VkScope> asSet() {
+        return VkScope.asSet(VkScope.FRIENDS, VkScope.PHOTOS, VkScope.WALL, VkScope.OFFLINE);
+    }
+
+    @Benchmark public VkScopeSet parse() {
+        return VkScopeSet.parse(Joined);
+    }
+
+    @Benchmark public String joinedCached() {
+        return set.joined();
+    }
+
+    @Benchmark public String joinedFresh() {
+        return VkScopeSet.copyOf(enumSet).joined();
+    }
+
+    @Benchmark public boolean containsAll() {
+        return set.containsAll(VkScopeSet.of(VkScope.WALL, VkScope.EMAIL));
+    }
+
+}
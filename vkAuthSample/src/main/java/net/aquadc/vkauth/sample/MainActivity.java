@@ -23,10 +23,13 @@ public final class MainActivity extends AppCompatActivity
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        VkApp.prefetchAvailableAuthenticationWays(this);
+        VkApp.warmUpWebView(this);
 
         buttons = new EnumMap<>(AuthenticationWay.class);
         buttons.put(AuthenticationWay.OfficialVkApp, withOnClick(R.id.ofAppAuth));
         buttons.put(AuthenticationWay.WebView, withOnClick(R.id.webViewAuth));
+        buttons.put(AuthenticationWay.CustomTabs, withOnClick(R.id.customTabsAuth));
         buttons.put(AuthenticationWay.Auto, withOnClick(R.id.autoAuth));
 
         output = findViewById(R.id.output);
@@ -48,6 +51,11 @@ public final class MainActivity extends AppCompatActivity
         for (AuthenticationWay way : AuthenticationWay.values()) {
             buttons.get(way).setEnabled(available.contains(way));
         }
+
+        if (available.contains(AuthenticationWay.CustomTabs)) {
+            VkApp.getInstance(BuildConfig.VK_APP_ID).warmUpCustomTabs(this, Collections.<VkScope>emptySet());
+        }
+        VkApp.getInstance(BuildConfig.VK_APP_ID).preconnect(this);
     }
 
     @Override